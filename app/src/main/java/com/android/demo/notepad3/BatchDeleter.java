@@ -0,0 +1,179 @@
+/*
+ * Copyright 2010-2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.android.demo.notepad3;
+
+import android.util.Log;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException.DeleteError;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Deletes any number of keys. S3 takes at most 1000 keys per multi-object
+ * delete, so the keys are cut into batches of that size and up to
+ * maxConcurrent batches are sent at once. Deleting a prefix lists it page by
+ * page and sends each page off while the next one is listed, waiting for a
+ * batch to finish whenever maxConcurrent of them are already out.
+ *
+ * A key that couldn't be deleted doesn't stop the rest, the Result says which
+ * keys failed and why. The methods block, so don't call them on the UI thread.
+ */
+public class BatchDeleter {
+    private static final String TAG = "BatchDeleter";
+    public static final int MAX_KEYS_PER_REQUEST = 1000;
+
+    // threads die off when no delete is running
+    private static final ExecutorService sPool = Executors.newCachedThreadPool();
+
+    private final AmazonS3Client mClient;
+    private final String mBucket;
+    private final int mMaxConcurrent;
+
+    /* What a delete did, failures map each key to why it is still there */
+    public static class Result {
+        private final AtomicInteger mDeleted = new AtomicInteger();
+        private final Map<String, String> mFailures =
+                Collections.synchronizedMap(new LinkedHashMap<String, String>());
+
+        public int getDeletedCount() {
+            return mDeleted.get();
+        }
+
+        public Map<String, String> getFailures() {
+            return mFailures;
+        }
+
+        public boolean isSuccessful() {
+            return mFailures.isEmpty();
+        }
+    }
+
+    public BatchDeleter(AmazonS3Client client, String bucket, int maxConcurrent) {
+        mClient = client;
+        mBucket = bucket;
+        mMaxConcurrent = Math.max(1, maxConcurrent);
+    }
+
+    public Result deleteKeys(List<String> keys) throws InterruptedException {
+        Result result = new Result();
+        Semaphore slots = new Semaphore(mMaxConcurrent);
+        for (int start = 0; start < keys.size(); start += MAX_KEYS_PER_REQUEST) {
+            int end = Math.min(keys.size(), start + MAX_KEYS_PER_REQUEST);
+            submit(new ArrayList<String>(keys.subList(start, end)), slots,
+                    result);
+        }
+        awaitAll(slots);
+        return result;
+    }
+
+    /* Everything under the prefix, including the prefix itself */
+    public Result deletePrefix(String prefix) throws InterruptedException {
+        final Result result = new Result();
+        final Semaphore slots = new Semaphore(mMaxConcurrent);
+        final ObjectLister lister = new ObjectLister(mClient, mBucket, 1);
+        final InterruptedException[] interrupted = new InterruptedException[1];
+        try {
+            lister.list(prefix, new ObjectLister.PageCallback() {
+                @Override
+                public void onPage(List<S3ObjectSummary> page) {
+                    // pages hold at most 1000 keys, one batch each
+                    List<String> keys = new ArrayList<String>(page.size());
+                    for (S3ObjectSummary summary : page) {
+                        keys.add(summary.getKey());
+                    }
+                    try {
+                        if (!keys.isEmpty()) {
+                            submit(keys, slots, result);
+                        }
+                        lister.pageConsumed();
+                    } catch (InterruptedException e) {
+                        interrupted[0] = e;
+                        lister.cancel();
+                    }
+                }
+            });
+        } finally {
+            // whatever was sent still gets to finish
+            awaitAll(slots);
+        }
+        if (interrupted[0] != null) {
+            throw interrupted[0];
+        }
+        return result;
+    }
+
+    /* waits for a free slot, so at most mMaxConcurrent batches are out */
+    private void submit(final List<String> keys, final Semaphore slots,
+            final Result result) throws InterruptedException {
+        slots.acquire();
+        sPool.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    deleteBatch(keys, result);
+                } finally {
+                    slots.release();
+                }
+            }
+        });
+    }
+
+    private void awaitAll(Semaphore slots) throws InterruptedException {
+        slots.acquire(mMaxConcurrent);
+        slots.release(mMaxConcurrent);
+    }
+
+    private void deleteBatch(List<String> keys, Result result) {
+        List<KeyVersion> keyVersions = new ArrayList<KeyVersion>(keys.size());
+        for (String key : keys) {
+            keyVersions.add(new KeyVersion(key));
+        }
+        // quiet, the response only lists the keys that failed
+        DeleteObjectsRequest request = new DeleteObjectsRequest(mBucket)
+                .withKeys(keyVersions).withQuiet(true);
+        try {
+            mClient.deleteObjects(request);
+            result.mDeleted.addAndGet(keys.size());
+        } catch (MultiObjectDeleteException e) {
+            List<DeleteError> errors = e.getErrors();
+            for (DeleteError error : errors) {
+                result.mFailures.put(error.getKey(),
+                        error.getCode() + ": " + error.getMessage());
+            }
+            result.mDeleted.addAndGet(keys.size() - errors.size());
+        } catch (AmazonClientException e) {
+            // the whole request failed, none of its keys went
+            Log.e(TAG, "", e);
+            for (String key : keys) {
+                result.mFailures.put(key, e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2010-2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.android.demo.notepad3;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3Client;
+
+import java.util.Locale;
+
+/*
+ * Remembers that our bucket exists, so starting the app doesn't have to ask
+ * S3 every time. Once we have seen the bucket it is taken on trust for
+ * TTL_MILLIS. If it turns out to be gone anyway, the first write that fails
+ * because of it calls ensureBucket(), which creates it, and tries again.
+ *
+ * ensureBucket() goes to the network, so don't call it on the UI thread.
+ */
+public class BucketBootstrap {
+    private static final String TAG = "BucketBootstrap";
+    private static final String PREFS_NAME = "bucket_bootstrap";
+    private static final long TTL_MILLIS = 24 * 60 * 60 * 1000L;
+
+    private final Context mContext;
+    private final SharedPreferences mPrefs;
+    private final String mBucket;
+
+    public BucketBootstrap(Context context) {
+        mContext = context.getApplicationContext();
+        mPrefs = mContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mBucket = Constants.BUCKET_NAME.toLowerCase(Locale.US);
+    }
+
+    /* whether we saw the bucket recently enough to not check again */
+    public boolean isKnownToExist() {
+        long seen = mPrefs.getLong(mBucket, 0);
+        long age = System.currentTimeMillis() - seen;
+        return seen != 0 && age >= 0 && age < TTL_MILLIS;
+    }
+
+    public void markExists() {
+        mPrefs.edit().putLong(mBucket, System.currentTimeMillis()).commit();
+    }
+
+    public void forget() {
+        mPrefs.edit().remove(mBucket).commit();
+    }
+
+    /*
+     * Makes sure the bucket is there. Returns true if it had to be created,
+     * so whatever failed because it was missing is worth trying again.
+     */
+    public boolean ensureBucket() {
+        // two writes failing at once shouldn't both try to create it
+        synchronized (BucketBootstrap.class) {
+            AmazonS3Client client = Util.getS3Client(mContext);
+            if (client.doesBucketExist(mBucket)) {
+                markExists();
+                return false;
+            }
+            try {
+                client.createBucket(mBucket);
+            } catch (AmazonServiceException e) {
+                if (!"BucketAlreadyOwnedByYou".equals(e.getErrorCode())) {
+                    throw e;
+                }
+            }
+            Log.d(TAG, "Created " + mBucket);
+            markExists();
+            return true;
+        }
+    }
+
+    /* whether a request failed because the bucket isn't there */
+    public static boolean isNoSuchBucket(Throwable e) {
+        // the pipelined uploads wrap what the parts ran into
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof AmazonServiceException
+                    && "NoSuchBucket".equals(((AmazonServiceException) cause)
+                            .getErrorCode())) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2010-2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.android.demo.notepad3;
+
+import android.util.Log;
+
+import com.amazonaws.AmazonServiceException;
+
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Finds out how much concurrency the link can take instead of guessing. Every
+ * SAMPLE_MILLIS it looks at the total rate (see TransferProgress) and at the
+ * trouble the transfers ran into since the last look:
+ *
+ *  - throttling, server errors, timeouts and retried requests halve both how
+ *    many transfers run at once and how many parts each of them has in flight
+ *  - otherwise, if the limit is actually being used, it goes up by one, and
+ *    if that didn't make things faster it is taken back and we leave the
+ *    limits alone for HOLD_SAMPLES
+ *
+ * A step is only judged once a transfer has started after it, since the
+ * part limits are read when a transfer starts and until then the rate can't
+ * show what the step did.
+ *
+ * Failures are reported by the models from whatever thread they happen on.
+ */
+public class ConcurrencyController {
+    private static final String TAG = "ConcurrencyController";
+    private static final long SAMPLE_MILLIS = 2000;
+    // a step up has to buy at least this much more rate to be kept
+    private static final double MIN_GAIN = 1.05;
+    // how many samples to wait after a step up that didn't help
+    private static final int HOLD_SAMPLES = 5;
+
+    private static final AtomicInteger sCongestion = new AtomicInteger();
+
+    private final TransferScheduler mScheduler;
+    private final TransferTuning mTuning;
+    private final int mMaxTransfers;
+    private final int mMaxUploadParts;
+    private final int mMaxDownloadParts;
+    private final ScheduledExecutorService mTimer =
+            Executors.newSingleThreadScheduledExecutor();
+    // only touched on mTimer
+    private int mHold;
+    // the limits and rate before the last step up, while we see whether it
+    // helped, and how many transfers the scheduler had started by then
+    private boolean mProbing;
+    private boolean mProbeStarted;
+    private long mProbeStartCount;
+    private long mRateBefore;
+    private int mPrevTransfers;
+    private int mPrevUploadParts;
+    private int mPrevDownloadParts;
+
+    /* the limits the scheduler and tuning start with are halfway to the max */
+    public ConcurrencyController(TransferScheduler scheduler,
+            TransferTuning tuning) {
+        mScheduler = scheduler;
+        mTuning = tuning;
+        mMaxTransfers = scheduler.getMaxConcurrent() * 2;
+        mMaxUploadParts = tuning.getUploadConcurrency() * 2;
+        mMaxDownloadParts = tuning.getDownloadConcurrency() * 2;
+    }
+
+    public void start() {
+        mTimer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                adjust();
+            }
+        }, SAMPLE_MILLIS, SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown() {
+        mTimer.shutdownNow();
+    }
+
+    /*
+     * For the models when a transfer fails, e is null if the SDK didn't say
+     * why. Only failures that point at too much load are counted.
+     */
+    static void recordFailure(Exception e) {
+        if (e == null || isCongestion(e)) {
+            sCongestion.incrementAndGet();
+        }
+    }
+
+    /* the SDK retried a request, which it only does when something is wrong */
+    static void recordRetry() {
+        sCongestion.incrementAndGet();
+    }
+
+    private static boolean isCongestion(Throwable e) {
+        // the pipelined uploads wrap what the parts ran into
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof AmazonServiceException) {
+                AmazonServiceException service = (AmazonServiceException) cause;
+                String code = service.getErrorCode();
+                // 503 SlowDown is S3 throttling us
+                if (service.getStatusCode() >= 500 || "SlowDown".equals(code)
+                        || "Throttling".equals(code)
+                        || "RequestTimeout".equals(code)) {
+                    return true;
+                }
+            }
+            // connect timeouts too, and ConnectException is a SocketException
+            if (cause instanceof SocketTimeoutException
+                    || cause instanceof SocketException) {
+                return true;
+            }
+        }
+        // a 403, a missing key, a bad digest... say nothing about the link
+        return false;
+    }
+
+    private void adjust() {
+        int congestion = sCongestion.getAndSet(0);
+        if (mScheduler.getRunningCount() == 0) {
+            // nothing to learn from an idle link
+            mProbing = false;
+            mHold = 0;
+            return;
+        }
+        long rate = TransferProgress.getTotal().bytesPerSecond;
+        if (congestion > 0) {
+            decrease();
+        } else if (mProbing) {
+            judge(rate);
+        } else if (mHold > 0) {
+            mHold--;
+        } else {
+            // before the step, more transfers start one right away
+            long started = mScheduler.getStartedCount();
+            if (increase()) {
+                mProbing = true;
+                mProbeStarted = false;
+                mProbeStartCount = started;
+                mRateBefore = rate;
+            }
+        }
+    }
+
+    /* keeps the last step up if it made things faster, otherwise undoes it */
+    private void judge(long rate) {
+        if (!mProbeStarted) {
+            // the next sample is the first with a transfer using the step
+            mProbeStarted = mScheduler.getStartedCount() > mProbeStartCount;
+            return;
+        }
+        if (rate < mRateBefore * MIN_GAIN) {
+            // the link is full
+            mScheduler.setMaxConcurrent(mPrevTransfers);
+            mTuning.setUploadConcurrency(mPrevUploadParts);
+            mTuning.setDownloadConcurrency(mPrevDownloadParts);
+            mHold = HOLD_SAMPLES;
+        }
+        mProbing = false;
+    }
+
+    private void decrease() {
+        mScheduler.setMaxConcurrent(Math.max(1, mScheduler.getMaxConcurrent() / 2));
+        mTuning.setUploadConcurrency(Math.max(1, mTuning.getUploadConcurrency() / 2));
+        mTuning.setDownloadConcurrency(Math.max(1,
+                mTuning.getDownloadConcurrency() / 2));
+        mProbing = false;
+        Log.d(TAG, "Congested, down to " + mScheduler.getMaxConcurrent()
+                + " transfers");
+    }
+
+    /* more transfers if some are waiting, otherwise more parts per transfer */
+    private boolean increase() {
+        int transfers = mScheduler.getMaxConcurrent();
+        int uploadParts = mTuning.getUploadConcurrency();
+        int downloadParts = mTuning.getDownloadConcurrency();
+        if (mScheduler.getRunningCount() < transfers) {
+            // the limit isn't what holds us back
+            return false;
+        }
+        mPrevTransfers = transfers;
+        mPrevUploadParts = uploadParts;
+        mPrevDownloadParts = downloadParts;
+        if (mScheduler.getQueuedCount() > 0 && transfers < mMaxTransfers) {
+            mScheduler.setMaxConcurrent(transfers + 1);
+            return true;
+        }
+        if (uploadParts < mMaxUploadParts || downloadParts < mMaxDownloadParts) {
+            mTuning.setUploadConcurrency(Math.min(mMaxUploadParts, uploadParts + 1));
+            mTuning.setDownloadConcurrency(Math.min(mMaxDownloadParts,
+                    downloadParts + 1));
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2010-2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.android.demo.notepad3;
+
+import com.amazonaws.ClientConfiguration;
+
+/*
+ * Knobs for the one S3 client everything shares (see Util). The client keeps
+ * its connections alive in a pool between requests, so listing and
+ * transfers reuse each other's connections instead of each doing their own
+ * TCP and TLS handshakes. The pool has to be big enough for every part that
+ * can be in flight at once, or transfers end up waiting on each other.
+ *
+ * Only read when the client is created, so change it before anything uses
+ * the client.
+ */
+public class ConnectionTuning {
+    private static final ConnectionTuning sDefault = new ConnectionTuning();
+
+    private int mMaxConnections = 32;
+    private int mConnectionTimeout = 10 * 1000;
+    private int mSocketTimeout = 30 * 1000;
+    // connections idle for a minute are closed, false keeps them until S3 does
+    private boolean mReapIdleConnections = true;
+    private int mTransferThreads = 12;
+
+    public static ConnectionTuning getDefault() {
+        return sDefault;
+    }
+
+    public int getMaxConnections() {
+        return mMaxConnections;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        mMaxConnections = Math.max(1, maxConnections);
+    }
+
+    /* millis to wait for a connection to be set up */
+    public int getConnectionTimeout() {
+        return mConnectionTimeout;
+    }
+
+    public void setConnectionTimeout(int timeout) {
+        mConnectionTimeout = timeout;
+    }
+
+    /* millis a connection may go without sending us anything */
+    public int getSocketTimeout() {
+        return mSocketTimeout;
+    }
+
+    public void setSocketTimeout(int timeout) {
+        mSocketTimeout = timeout;
+    }
+
+    public boolean isReapIdleConnections() {
+        return mReapIdleConnections;
+    }
+
+    public void setReapIdleConnections(boolean reap) {
+        mReapIdleConnections = reap;
+    }
+
+    /* threads the shared TransferManager sends requests on */
+    public int getTransferThreads() {
+        return mTransferThreads;
+    }
+
+    public void setTransferThreads(int threads) {
+        mTransferThreads = Math.max(1, threads);
+    }
+
+    public ClientConfiguration toConfiguration() {
+        ClientConfiguration configuration = new ClientConfiguration();
+        configuration.setMaxConnections(mMaxConnections);
+        configuration.setConnectionTimeout(mConnectionTimeout);
+        configuration.setSocketTimeout(mSocketTimeout);
+        configuration.setUseReaper(mReapIdleConnections);
+        return configuration;
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2010-2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.android.demo.notepad3;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.AWSSessionCredentials;
+import com.amazonaws.auth.CognitoCachingCredentialsProvider;
+
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Hands the S3 client its credentials without going to Cognito in the middle
+ * of a request. The credentials are fetched in the background as soon as the
+ * process starts and fetched again REFRESH_AHEAD_MILLIS before they expire,
+ * while the old ones are still good, so a long transfer signs its later parts
+ * with the new ones without ever waiting.
+ *
+ * Only if there is nothing usable yet (the very first request, or we have
+ * been offline for longer than the credentials last) does getCredentials()
+ * block on the fetch, like the Cognito provider itself would.
+ */
+public class CredentialManager implements AWSCredentialsProvider {
+    private static final String TAG = "CredentialManager";
+    private static final long REFRESH_AHEAD_MILLIS = 5 * 60 * 1000;
+    // a request signed this close to expiry might not make it in time
+    private static final long EXPIRY_MARGIN_MILLIS = 60 * 1000;
+    private static final long MIN_RETRY_MILLIS = 15 * 1000;
+    private static final long MAX_RETRY_MILLIS = 5 * 60 * 1000;
+
+    private static CredentialManager sManager;
+
+    private final CognitoCachingCredentialsProvider mProvider;
+    private final ScheduledExecutorService mRefresher =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    private volatile AWSSessionCredentials mCredentials;
+    private volatile long mExpiresAt;
+    // only touched on mRefresher
+    private long mRetryMillis = MIN_RETRY_MILLIS;
+
+    /* The first call starts fetching credentials in the background */
+    public static CredentialManager get(Context context) {
+        synchronized (CredentialManager.class) {
+            if (sManager != null) {
+                return sManager;
+            }
+        }
+        // not under our lock, Util.getS3Client() calls us holding Util's
+        CognitoCachingCredentialsProvider provider = Util.getCredProvider(context);
+        synchronized (CredentialManager.class) {
+            if (sManager == null) {
+                sManager = new CredentialManager(provider);
+                sManager.refreshLater(0);
+            }
+            return sManager;
+        }
+    }
+
+    private CredentialManager(CognitoCachingCredentialsProvider provider) {
+        mProvider = provider;
+    }
+
+    @Override
+    public AWSCredentials getCredentials() {
+        AWSSessionCredentials credentials = mCredentials;
+        if (credentials != null
+                && System.currentTimeMillis() < mExpiresAt - EXPIRY_MARGIN_MILLIS) {
+            return credentials;
+        }
+        // nothing we can use, this request has to wait for the fetch
+        synchronized (this) {
+            if (mCredentials == null || System.currentTimeMillis()
+                    >= mExpiresAt - EXPIRY_MARGIN_MILLIS) {
+                fetch(false);
+            }
+            return mCredentials;
+        }
+    }
+
+    /* starts fetching new credentials in the background, doesn't wait */
+    @Override
+    public void refresh() {
+        mRefresher.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    synchronized (CredentialManager.this) {
+                        fetch(true);
+                    }
+                } catch (Exception e) {
+                    // the scheduled refresh keeps trying
+                    Log.e(TAG, "", e);
+                }
+            }
+        });
+    }
+
+    private void refreshLater(long delayMillis) {
+        mRefresher.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    synchronized (CredentialManager.this) {
+                        fetch(false);
+                    }
+                    mRetryMillis = MIN_RETRY_MILLIS;
+                    // not too eager if the sessions are unusually short
+                    refreshLater(Math.max(MIN_RETRY_MILLIS, mExpiresAt
+                            - REFRESH_AHEAD_MILLIS - System.currentTimeMillis()));
+                } catch (Exception e) {
+                    // offline probably, keep trying but not too often
+                    Log.e(TAG, "", e);
+                    refreshLater(mRetryMillis);
+                    mRetryMillis = Math.min(MAX_RETRY_MILLIS, mRetryMillis * 2);
+                }
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /*
+     * Takes the provider's credentials (which it may have cached on disk)
+     * unless they are due for a refresh or force is set, then gets new ones.
+     * The expiry is looked at first, because getCredentials() on credentials
+     * that are about to expire would go to STS only for refresh() to go again.
+     * Call with the lock held.
+     */
+    private void fetch(boolean force) {
+        Date expiration = mProvider.getSessionCredentitalsExpiration();
+        if (force || expiration == null || expiration.getTime()
+                - System.currentTimeMillis() < REFRESH_AHEAD_MILLIS) {
+            mProvider.refresh();
+        }
+        AWSSessionCredentials credentials = mProvider.getCredentials();
+        mExpiresAt = getExpiration();
+        mCredentials = credentials;
+    }
+
+    private long getExpiration() {
+        Date expiration = mProvider.getSessionCredentitalsExpiration();
+        // STS always says, but just in case assume the usual hour
+        return expiration != null ? expiration.getTime()
+                : System.currentTimeMillis() + 60 * 60 * 1000;
+    }
+}
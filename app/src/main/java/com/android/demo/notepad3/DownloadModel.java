@@ -21,11 +21,14 @@ import android.net.Uri;
 import android.os.Environment;
 import android.util.Log;
 
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.ProgressEvent;
 import com.amazonaws.services.s3.model.ProgressListener;
 import com.amazonaws.mobileconnectors.s3.transfermanager.Download;
 import com.amazonaws.mobileconnectors.s3.transfermanager.PersistableDownload;
 import com.amazonaws.mobileconnectors.s3.transfermanager.Transfer;
+import com.amazonaws.mobileconnectors.s3.transfermanager.Transfer.TransferState;
 import com.amazonaws.mobileconnectors.s3.transfermanager.TransferManager;
 import com.amazonaws.mobileconnectors.s3.transfermanager.exception.PauseException;
 
@@ -34,43 +37,83 @@ import java.io.IOException;
 import java.util.Locale;
 
 /*
- * Class that encapsulates downloads, handling all the interaction with the
- * underlying Download and TransferManager
+ * Class that encapsulates downloads. Objects below the tuning's download
+ * threshold are fetched in one GET (see StreamDownload), pausing one of those
+ * starts it over on resume. Objects at or above it are fetched as parallel
+ * ranged GETs (see ParallelDownload), pausing one of those keeps the ranges
+ * that already finished and resuming fetches the rest. Only downloads saved
+ * by an earlier version as a TransferManager checkpoint still go through the
+ * underlying Download and TransferManager.
+ *
+ * Notes that were uploaded compressed are decompressed on the way to the file
+ * (see StreamDownload), so the file is the note as it was written.
+ *
+ * Either way the content is checked against the ETag while it is written, by
+ * the SDK's getObject() for a single GET and by ParallelDownload for ranged
+ * ones, so there is never a second pass over the file.
  */
 public class DownloadModel extends TransferModel {
     private static final String TAG = "DownloadModel";
 
-    private Download mDownload;
+    // only set for a download resumed from a TransferManager checkpoint
+    private volatile Download mDownload;
+    private volatile ParallelDownload mParallel;
+    private volatile StreamDownload mStream;
     private PersistableDownload mPersistableDownload;
     private ProgressListener mListener;
     private String mKey;
-    private Status mStatus;
     private Uri mUri;
 
-    public DownloadModel(Context context, String key, TransferManager manager) {
-        super(context, Uri.parse(key), manager);
+    public DownloadModel(Context context, String key, TransferManager manager,
+            TransferTuning tuning) {
+        super(context, Uri.parse(key), manager, tuning);
         mKey = key;
-        mStatus = Status.IN_PROGRESS;
         mListener = new ProgressListener() {
             @Override
             public void progressChanged(ProgressEvent event) {
-                if (event.getEventCode() == ProgressEvent.COMPLETED_EVENT_CODE) {
-
-                    Intent mediaScanIntent = new Intent(
-                            Intent.ACTION_MEDIA_SCANNER_SCAN_FILE);
-                    mediaScanIntent.setData(mUri);
-                    getContext().sendBroadcast(mediaScanIntent);
-
-                    mStatus = Status.COMPLETED;
-
-                }
+                onProgressEvent(event.getEventCode(),
+                        event.getBytesTransferred());
             }
         };
     }
 
-    @Override
-    public Status getStatus() {
-        return mStatus;
+    /* ours and the SDK's for a resumed checkpoint send the same codes */
+    private void onProgressEvent(int code, long bytes) {
+        if (code == ProgressEvent.COMPLETED_EVENT_CODE
+                || code == ProgressEvent.FAILED_EVENT_CODE) {
+            onFinished(code == ProgressEvent.COMPLETED_EVENT_CODE);
+        } else if (code == 0) {
+            // just bytes
+            notifyProgress(bytes);
+        } else if (code == ProgressEvent.RESET_EVENT_CODE) {
+            // a retried request takes back what it got
+            notifyProgress(-bytes);
+        }
+    }
+
+    /* a resumed download can tell us it finished twice, see resume() */
+    private synchronized void onFinished(boolean completed) {
+        Status status = getStatus();
+        if (status == Status.COMPLETED || status == Status.CANCELED) {
+            return;
+        }
+        if (completed) {
+            onDownloaded();
+        } else {
+            ConcurrencyController.recordFailure(null);
+            setStatus(Status.CANCELED);
+        }
+    }
+
+    /* rebuilds a download the process died in the middle of */
+    public DownloadModel(Context context,
+            TransferCheckpoints.Checkpoint checkpoint, TransferManager manager,
+            TransferTuning tuning) {
+        this(context, checkpoint.getSource(), manager, tuning);
+        mUri = Uri.fromFile(new File(checkpoint.getFile()));
+        mPersistableDownload = checkpoint.getToken();
+        setCheckpointId(checkpoint.getId());
+        setStatus(Status.PAUSED);
     }
 
     @Override
@@ -83,54 +126,190 @@ public class DownloadModel extends TransferModel {
         return mUri;
     }
 
+    @Override
+    protected void onEvicted() {
+        mDownload = null;
+        mPersistableDownload = null;
+    }
+
     @Override
     public void abort() {
-        if (mDownload != null) {
-            mStatus = Status.CANCELED;
+        ParallelDownload parallel = mParallel;
+        StreamDownload stream = mStream;
+        if (parallel != null || stream != null) {
+            boolean running = getStatus() == Status.IN_PROGRESS;
+            setStatus(Status.CANCELED);
+            if (parallel != null) {
+                parallel.abort();
+            } else {
+                stream.abort();
+            }
+            if (!running) {
+                // paused, so nobody else is going to clean up the file
+                mParallel = null;
+                mStream = null;
+                new File(mUri.getPath()).delete();
+            }
+        } else if (mDownload != null) {
             try {
                 mDownload.abort();
             } catch (IOException e) {
                 Log.e(TAG, "", e);
             }
+            setStatus(Status.CANCELED);
+        } else if (getStatus() != Status.COMPLETED
+                && getStatus() != Status.CANCELED) {
+            // queued, or download() is still asking for the metadata and
+            // checks for this before it starts anything
+            setStatus(Status.CANCELED);
         }
     }
 
+    @Override
+    public void start() {
+        download();
+    }
+
     public void download() {
-        mStatus = Status.IN_PROGRESS;
+        // a new attempt, whatever the last one left there is done with
+        mDownload = null;
+        setStatus(Status.IN_PROGRESS);
         File file = new File(
                 Environment.getExternalStoragePublicDirectory(
                         Environment.DIRECTORY_DOWNLOADS),
                 getFileName());
         mUri = Uri.fromFile(file);
+        String bucket = Constants.BUCKET_NAME.toLowerCase(Locale.US);
+
+        try {
+            if (mParallel == null && mStream == null) {
+                // this also runs on a worker, so a HEAD request is fine here
+                AmazonS3 client = getTransferManager().getAmazonS3Client();
+                ObjectMetadata metadata = client.getObjectMetadata(bucket, mKey);
+                long length = metadata.getContentLength();
+                // on the wire, so compressed for a gzipped note
+                setProgressTotal(length);
+                boolean gzipped = UploadModel.ENCODING_GZIP.equals(
+                        metadata.getContentEncoding());
+                if (!gzipped && length >= getTuning().getDownloadThreshold()) {
+                    mParallel = new ParallelDownload(client, bucket, mKey,
+                            stripQuotes(metadata.getETag()), file, length,
+                            getTuning());
+                    mParallel.setProgressListener(mListener);
+                } else {
+                    mStream = new StreamDownload(client, bucket, mKey, file,
+                            gzipped);
+                    mStream.setProgressListener(mListener);
+                }
+            }
+            if (getStatus() != Status.IN_PROGRESS) {
+                // paused or aborted while we were asking
+                if (getStatus() == Status.CANCELED) {
+                    mParallel = null;
+                    mStream = null;
+                }
+                return;
+            }
+            if (mParallel != null) {
+                // carries on from the ranges it already has
+                resetProgress(mParallel.getBytesTransferred());
+                mParallel.run();
+                mParallel = null;
+                onDownloaded();
+                return;
+            }
+            resetProgress(0);
+            mStream.run();
+            mStream = null;
+            onDownloaded();
+        } catch (Exception e) {
+            Log.e(TAG, "", e);
+            // pausing or aborting one of ours ends up here too
+            if (getStatus() == Status.IN_PROGRESS) {
+                ConcurrencyController.recordFailure(e);
+                mParallel = null;
+                mStream = null;
+                setStatus(Status.CANCELED);
+            } else if (getStatus() == Status.CANCELED) {
+                mParallel = null;
+                mStream = null;
+                file.delete();
+            }
+        }
+    }
 
-        mDownload = getTransferManager().download(
-                Constants.BUCKET_NAME.toLowerCase(Locale.US), mKey, file);
-        if (mListener != null) {
-            mDownload.addProgressListener(mListener);
+    private static String stripQuotes(String eTag) {
+        if (eTag != null && eTag.length() >= 2 && eTag.startsWith("\"")
+                && eTag.endsWith("\"")) {
+            return eTag.substring(1, eTag.length() - 1);
         }
+        return eTag;
+    }
+
+    private void onDownloaded() {
+        Intent mediaScanIntent = new Intent(
+                Intent.ACTION_MEDIA_SCANNER_SCAN_FILE);
+        mediaScanIntent.setData(mUri);
+        getContext().sendBroadcast(mediaScanIntent);
+
+        setStatus(Status.COMPLETED);
     }
 
     @Override
     public void pause() {
-        if (mStatus == Status.IN_PROGRESS) {
-            mStatus = Status.PAUSED;
-            try {
-                mPersistableDownload = mDownload.pause();
-            } catch (PauseException e) {
-                Log.d(TAG, "", e);
+        ParallelDownload parallel = mParallel;
+        StreamDownload stream = mStream;
+        if (getStatus() == Status.IN_PROGRESS && parallel != null) {
+            // the finished ranges are kept, resume() fetches the rest
+            setStatus(Status.PAUSED);
+            parallel.abort();
+        } else if (getStatus() == Status.IN_PROGRESS && stream != null) {
+            // below the threshold, so resume() just starts over
+            setStatus(Status.PAUSED);
+            stream.abort();
+        } else if (getStatus() == Status.IN_PROGRESS) {
+            Download download = mDownload;
+            setStatus(Status.PAUSED);
+            // one resumed from a checkpoint, otherwise download() is still
+            // asking for the metadata and sees we paused
+            if (download != null) {
+                pauseDownload(download);
             }
         }
     }
 
+    /* keeps the token, so resume() carries on from where it got to */
+    private void pauseDownload(Download download) {
+        try {
+            mPersistableDownload = download.pause();
+            saveCheckpoint(TransferCheckpoints.KIND_DOWNLOAD, mKey,
+                    mUri.getPath(), mPersistableDownload);
+        } catch (PauseException e) {
+            Log.d(TAG, "", e);
+        }
+    }
+
     @Override
     public void resume() {
-        if (mStatus == Status.PAUSED) {
-            mStatus = Status.IN_PROGRESS;
+        if (getStatus() == Status.PAUSED) {
+            // before IN_PROGRESS, so a pause() from then on sticks
+            ParallelDownload parallel = mParallel;
+            if (parallel != null) {
+                parallel.clearAbort();
+            }
+            // a paused stream starts over, download() makes a new one
+            mStream = null;
+            setStatus(Status.IN_PROGRESS);
             if (mPersistableDownload != null) {
-                mDownload = getTransferManager().resumeDownload(
+                Download download = getTransferManager().resumeDownload(
                         mPersistableDownload);
-                mDownload.addProgressListener(mListener);
+                mDownload = download;
                 mPersistableDownload = null;
+                // the SDK takes no listener here, it may be done already
+                download.addProgressListener(mListener);
+                if (download.isDone()) {
+                    onFinished(download.getState() == TransferState.Completed);
+                }
             } else {
                 download();
             }
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2010-2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.android.demo.notepad3;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/*
+ * Resolves the Cognito identity id that all of our keys are prefixed with.
+ * Going through the credentials provider can mean a network call, so the id
+ * is resolved once in the background when the app starts and then kept in
+ * memory and in shared preferences. After that getting the prefix never
+ * blocks.
+ */
+public class IdentityResolver {
+    private static final String TAG = "IdentityResolver";
+    private static final String PREFS_NAME = "identity";
+    // the id is only valid for the pool it came from
+    private static final String KEY_IDENTITY_ID = "identity_id_"
+            + Constants.COGNITO_POOL_ID;
+
+    private static volatile String sIdentityId;
+    private static boolean sWarmingUp;
+
+    /*
+     * Starts resolving the identity in the background if we don't have it.
+     * Even the shared preferences are read on that thread, not the caller's.
+     */
+    public static void warmUp(Context context) {
+        final Context appContext = context.getApplicationContext();
+        if (sIdentityId != null) {
+            return;
+        }
+        synchronized (IdentityResolver.class) {
+            if (sWarmingUp) {
+                return;
+            }
+            sWarmingUp = true;
+        }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    getIdentityId(appContext);
+                } catch (Exception e) {
+                    Log.e(TAG, "", e);
+                } finally {
+                    synchronized (IdentityResolver.class) {
+                        sWarmingUp = false;
+                    }
+                }
+            }
+        }, TAG).start();
+    }
+
+    /*
+     * Returns the identity id if it is already in memory, otherwise null.
+     * Never touches the disk or the network, so it is safe on the UI thread.
+     */
+    public static String peekIdentityId() {
+        return sIdentityId;
+    }
+
+    /* Returns the key prefix if it is already known, otherwise null */
+    public static String peekPrefix() {
+        String identityId = peekIdentityId();
+        return identityId == null ? null : identityId + "/";
+    }
+
+    /*
+     * Returns the identity id, from shared preferences or by resolving it if
+     * needed. This can block, so don't call it on the UI thread.
+     */
+    public static String getIdentityId(Context context) {
+        String identityId = sIdentityId;
+        if (identityId != null) {
+            return identityId;
+        }
+        synchronized (IdentityResolver.class) {
+            if (sIdentityId == null) {
+                SharedPreferences prefs = getPrefs(context);
+                identityId = prefs.getString(KEY_IDENTITY_ID, null);
+                if (identityId == null) {
+                    identityId = Util.getCredProvider(context).getIdentityId();
+                    prefs.edit().putString(KEY_IDENTITY_ID, identityId)
+                            .commit();
+                }
+                sIdentityId = identityId;
+            }
+            return sIdentityId;
+        }
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getApplicationContext().getSharedPreferences(
+                PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2010-2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.android.demo.notepad3;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/*
+ * On-device copy of the last bucket listing so NoteList can show the notes
+ * straight away and only reconcile the differences once the network listing
+ * comes back. We only keep what the list needs: key, size, ETag and last
+ * modified date. Sizes are stored as listed and swapped for the size before
+ * compression (see LogicalSizes) when they are loaded.
+ *
+ * The cache is rewritten as the listing streams in and only replaces the old
+ * one once the listing finished, so a canceled refresh never leaves half a
+ * listing behind.
+ */
+public class ListingCache {
+    private static final String TAG = "ListingCache";
+    private static final String FILE_NAME = "listing_cache";
+    private static final int VERSION = 1;
+
+    private final File mFile;
+    private final LogicalSizes mLogicalSizes;
+
+    public ListingCache(Context context) {
+        mFile = new File(context.getFilesDir(), FILE_NAME);
+        mLogicalSizes = new LogicalSizes(context);
+    }
+
+    /*
+     * Returns the cached listing for the given prefix, leaving out the
+     * "folder" itself, or an empty listing if there is no usable cache
+     */
+    public ListingStore load(String prefix) {
+        if (!mFile.exists()) {
+            return ListingStore.EMPTY;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(mFile)));
+            if (in.readInt() != VERSION || !in.readUTF().equals(prefix)) {
+                // written by an older version or for another identity
+                return ListingStore.EMPTY;
+            }
+            ListingStore.Builder builder = new ListingStore.Builder(16);
+            while (in.readBoolean()) {
+                String key = in.readUTF();
+                long size = in.readLong();
+                String eTag = in.readUTF();
+                long lastModified = in.readLong();
+                if (!key.equals(prefix)) {
+                    builder.add(key, mLogicalSizes.get(key, eTag, size), eTag,
+                            lastModified);
+                }
+            }
+            return builder.build();
+        } catch (IOException e) {
+            Log.e(TAG, "", e);
+            return ListingStore.EMPTY;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "", e);
+                }
+            }
+        }
+    }
+
+    public Writer edit(String prefix) throws IOException {
+        return new Writer(prefix, ".tmp");
+    }
+
+    /*
+     * Drops deleted keys, so the next start doesn't show them until the
+     * listing comes back. Rewrites the whole file, don't call it on the UI
+     * thread.
+     */
+    public void remove(String prefix, Collection<String> keys) {
+        if (!mFile.exists() || keys.isEmpty()) {
+            return;
+        }
+        Set<String> removed = new HashSet<String>(keys);
+        DataInputStream in = null;
+        Writer writer = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(mFile)));
+            if (in.readInt() != VERSION || !in.readUTF().equals(prefix)) {
+                // not ours to edit, load() ignores it anyway
+                return;
+            }
+            // not .tmp, a refresh may be writing that one
+            writer = new Writer(prefix, ".del");
+            while (in.readBoolean()) {
+                String key = in.readUTF();
+                long size = in.readLong();
+                String eTag = in.readUTF();
+                long lastModified = in.readLong();
+                if (!removed.contains(key)) {
+                    writer.append(key, size, eTag, lastModified);
+                }
+            }
+            in.close();
+            in = null;
+            writer.commit();
+            writer = null;
+        } catch (IOException e) {
+            // better no cache than one with deleted notes in it
+            Log.e(TAG, "", e);
+            mFile.delete();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "", e);
+                }
+            }
+            if (writer != null) {
+                writer.abort();
+            }
+        }
+    }
+
+    /* after the whole bucket went */
+    public void clear() {
+        mFile.delete();
+    }
+
+    /* Writes a new listing page by page, replacing the old one on commit() */
+    public class Writer {
+        private final File mTmpFile;
+        private final DataOutputStream mOut;
+
+        private Writer(String prefix, String suffix) throws IOException {
+            mTmpFile = new File(mFile.getPath() + suffix);
+            mOut = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(mTmpFile, false)));
+            mOut.writeInt(VERSION);
+            mOut.writeUTF(prefix);
+        }
+
+        public void append(List<S3ObjectSummary> page) throws IOException {
+            for (S3ObjectSummary summary : page) {
+                append(summary.getKey(), summary.getSize(),
+                        summary.getETag() == null ? "" : summary.getETag(),
+                        summary.getLastModified() == null ? -1
+                                : summary.getLastModified().getTime());
+            }
+        }
+
+        private void append(String key, long size, String eTag,
+                long lastModified) throws IOException {
+            mOut.writeBoolean(true);
+            mOut.writeUTF(key);
+            mOut.writeLong(size);
+            mOut.writeUTF(eTag);
+            mOut.writeLong(lastModified);
+        }
+
+        public void commit() throws IOException {
+            mOut.writeBoolean(false);
+            mOut.close();
+            if (!mTmpFile.renameTo(mFile)) {
+                throw new IOException("Could not replace " + mFile);
+            }
+        }
+
+        public void abort() {
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                Log.e(TAG, "", e);
+            }
+            mTmpFile.delete();
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2010-2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.android.demo.notepad3;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+
+/*
+ * Keyed diff between the listing the adapter is showing and a new listing
+ * that is still streaming in. This is meant to run off the UI thread; the UI
+ * thread only has to swap in Result.store and notify once.
+ *
+ * Listings come back sorted by key, so while the new listing is incomplete
+ * anything in the old listing past the last key we have seen is kept as is,
+ * and everything before it that was not listed again has been removed.
+ *
+ * While streaming, addPage() merges just the page's key range with the old
+ * rows it covers, so each page costs its own size and not the whole listing
+ * so far. The snapshot it hands back shares the rows merged so far and the
+ * old rows still ahead instead of copying them, and a page that changes
+ * nothing doesn't build one at all.
+ */
+public class ListingDiff {
+    private final ListingStore mOld;
+    // what addPage() has merged, the old rows from mOldPos on are still ahead
+    private ListingStore.Builder mMerged;
+    private int mOldPos;
+
+    public static class Result {
+        /*
+         * the snapshot to show, unchanged rows share the old strings. Null
+         * from addPage() and finish() when nothing changed.
+         */
+        public final ListingStore store;
+        public final int inserted;
+        public final int removed;
+        public final int changed;
+
+        private Result(ListingStore store, int inserted, int removed,
+                int changed) {
+            this.store = store;
+            this.inserted = inserted;
+            this.removed = removed;
+            this.changed = changed;
+        }
+
+        public boolean isEmpty() {
+            return inserted == 0 && removed == 0 && changed == 0;
+        }
+    }
+
+    public ListingDiff(ListingStore old) {
+        // once per listing, so the snapshots never end in one with a tail
+        ListingStore flat = old.flatten();
+        mOld = flat.isSorted() ? flat : sorted(flat);
+    }
+
+    /*
+     * Diffs everything listed so far against the old listing. If complete is
+     * false the old rows that sort after the last listed key are kept.
+     */
+    public Result compute(ListingStore listed, boolean complete) {
+        ListingStore.Builder builder = new ListingStore.Builder(
+                Math.max(listed.size(), mOld.size()));
+        // old rows that were listed again
+        BitSet seen = new BitSet(mOld.size());
+        int inserted = 0;
+        int removed = 0;
+        int changed = 0;
+
+        for (int i = 0; i < listed.size(); i++) {
+            int oldPos = mOld.indexOf(listed.getKey(i));
+            if (oldPos < 0) {
+                inserted++;
+                builder.add(listed, i);
+            } else {
+                seen.set(oldPos);
+                if (listed.isChanged(i, mOld, oldPos)) {
+                    changed++;
+                    builder.add(listed, i);
+                } else {
+                    builder.add(mOld, oldPos);
+                }
+            }
+        }
+
+        String lastKey = listed.size() == 0 ? null
+                : listed.getKey(listed.size() - 1);
+        for (int i = 0; i < mOld.size(); i++) {
+            if (seen.get(i)) {
+                continue;
+            }
+            if (!complete
+                    && (lastKey == null || mOld.getKey(i).compareTo(lastKey) > 0)) {
+                // not reached by the listing yet
+                builder.add(mOld, i);
+            } else {
+                removed++;
+            }
+        }
+        return new Result(builder.build(), inserted, removed, changed);
+    }
+
+    /*
+     * Merges the next page of the listing, which has to sort after the pages
+     * before it, and returns what it changed.
+     */
+    public Result addPage(ListingStore page) {
+        if (mMerged == null) {
+            mMerged = new ListingStore.Builder(Math.max(page.size(),
+                    mOld.size()));
+        }
+        int inserted = 0;
+        int removed = 0;
+        int changed = 0;
+        for (int i = 0; i < page.size(); i++) {
+            String key = page.getKey(i);
+            // old rows before this key were not listed again
+            while (mOldPos < mOld.size()
+                    && mOld.getKey(mOldPos).compareTo(key) < 0) {
+                removed++;
+                mOldPos++;
+            }
+            if (mOldPos < mOld.size() && mOld.getKey(mOldPos).equals(key)) {
+                if (page.isChanged(i, mOld, mOldPos)) {
+                    changed++;
+                    mMerged.add(page, i);
+                } else {
+                    mMerged.add(mOld, mOldPos);
+                }
+                mOldPos++;
+            } else {
+                inserted++;
+                mMerged.add(page, i);
+            }
+        }
+        if (inserted == 0 && removed == 0 && changed == 0) {
+            return new Result(null, 0, 0, 0);
+        }
+        // the old rows the listing hasn't reached yet stay as they are
+        return new Result(mMerged.build(mOld, mOldPos), inserted, removed,
+                changed);
+    }
+
+    /* The listing is complete, old rows it never reached are gone */
+    public Result finish() {
+        int removed = mOld.size() - mOldPos;
+        mOldPos = mOld.size();
+        if (removed == 0) {
+            return new Result(null, 0, 0, 0);
+        }
+        ListingStore store = mMerged == null ? ListingStore.EMPTY
+                : mMerged.build();
+        return new Result(store, 0, removed, 0);
+    }
+
+    /* a copy in key order, so addPage() can walk it alongside the listing */
+    private static ListingStore sorted(final ListingStore store) {
+        Integer[] order = new Integer[store.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return store.getKey(lhs).compareTo(store.getKey(rhs));
+            }
+        });
+        ListingStore.Builder builder = new ListingStore.Builder(order.length);
+        for (Integer pos : order) {
+            builder.add(store, pos);
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2010-2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.android.demo.notepad3;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/*
+ * Immutable, column oriented snapshot of a bucket listing. Instead of one
+ * S3ObjectSummary per note (owner, storage class, bucket name...) we keep
+ * parallel arrays of just what the list shows and what the diff needs, and
+ * the display strings are worked out once when a row is first seen so that
+ * binding a row does no work at all.
+ *
+ * Rows copied over from a previous snapshot share its strings, so an
+ * unchanged note costs no new objects on refresh.
+ *
+ * A snapshot can also end in the rows of another one from some position on
+ * (see Builder.build(ListingStore, int)), which is how a listing that is
+ * still streaming in is shown without copying the rows it hasn't reached.
+ */
+public class ListingStore {
+    public static final ListingStore EMPTY = new Builder(0).build();
+
+    // most notes are small, so their size strings are shared between rows
+    private static final String[] SMALL_SIZE_TEXTS = new String[4096];
+
+    private final int mCount;
+    private final String[] mKeys;
+    private final String[] mNames;
+    private final String[] mSizeTexts;
+    private final String[] mETags;
+    private final long[] mSizes;
+    private final long[] mLastModified;
+    // the rows after our own mCount, from mTailFrom on. Never has a tail itself
+    private final ListingStore mTail;
+    private final int mTailFrom;
+    private final int mSize;
+    // listings come back sorted, which lets indexOf binary search
+    private final boolean mSorted;
+
+    private ListingStore(Builder builder, ListingStore tail, int tailFrom) {
+        mCount = builder.mCount;
+        mKeys = builder.mKeys;
+        mNames = builder.mNames;
+        mSizeTexts = builder.mSizeTexts;
+        mETags = builder.mETags;
+        mSizes = builder.mSizes;
+        mLastModified = builder.mLastModified;
+        if (tail == null || tailFrom >= tail.mSize) {
+            mTail = null;
+            mTailFrom = 0;
+            mSize = mCount;
+            mSorted = builder.mSorted;
+        } else {
+            mTail = tail;
+            mTailFrom = tailFrom;
+            mSize = mCount + tail.mSize - tailFrom;
+            mSorted = builder.mSorted && tail.mSorted && (mCount == 0
+                    || mKeys[mCount - 1].compareTo(tail.mKeys[tailFrom]) < 0);
+        }
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public String getKey(int pos) {
+        return pos < mCount ? mKeys[pos] : mTail.mKeys[tailPos(pos)];
+    }
+
+    /* the file name shown in the list */
+    public String getName(int pos) {
+        return pos < mCount ? mNames[pos] : mTail.mNames[tailPos(pos)];
+    }
+
+    public long getSize(int pos) {
+        return pos < mCount ? mSizes[pos] : mTail.mSizes[tailPos(pos)];
+    }
+
+    public String getSizeText(int pos) {
+        return pos < mCount ? mSizeTexts[pos] : mTail.mSizeTexts[tailPos(pos)];
+    }
+
+    public String getETag(int pos) {
+        return pos < mCount ? mETags[pos] : mTail.mETags[tailPos(pos)];
+    }
+
+    /* last modified time in millis, or -1 if unknown */
+    public long getLastModified(int pos) {
+        return pos < mCount ? mLastModified[pos]
+                : mTail.mLastModified[tailPos(pos)];
+    }
+
+    private int tailPos(int pos) {
+        if (mTail == null || pos >= mSize) {
+            throw new ArrayIndexOutOfBoundsException(pos);
+        }
+        return mTailFrom + pos - mCount;
+    }
+
+    /* the same rows without a tail, this one if it has none */
+    public ListingStore flatten() {
+        if (mTail == null) {
+            return this;
+        }
+        Builder builder = new Builder(mSize);
+        for (int i = 0; i < mSize; i++) {
+            builder.add(this, i);
+        }
+        return builder.build();
+    }
+
+    /* position of the key in this snapshot, or -1 */
+    public int indexOf(String key) {
+        if (mSorted) {
+            int low = 0;
+            int high = mSize - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = getKey(mid).compareTo(key);
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+        for (int i = 0; i < mSize; i++) {
+            if (getKey(i).equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /* whether the keys are in order, which listings always are */
+    public boolean isSorted() {
+        return mSorted;
+    }
+
+    /* whether row pos differs from row otherPos of the other snapshot */
+    public boolean isChanged(int pos, ListingStore other, int otherPos) {
+        return getSize(pos) != other.getSize(otherPos)
+                || getLastModified(pos) != other.getLastModified(otherPos)
+                || !getETag(pos).equals(other.getETag(otherPos));
+    }
+
+    private static String sizeText(long size) {
+        if (size < 0 || size >= SMALL_SIZE_TEXTS.length) {
+            return String.valueOf(size);
+        }
+        String text = SMALL_SIZE_TEXTS[(int) size];
+        if (text == null) {
+            text = String.valueOf(size);
+            SMALL_SIZE_TEXTS[(int) size] = text;
+        }
+        return text;
+    }
+
+    public static class Builder {
+        private int mCount;
+        private String[] mKeys;
+        private String[] mNames;
+        private String[] mSizeTexts;
+        private String[] mETags;
+        private long[] mSizes;
+        private long[] mLastModified;
+        private boolean mSorted = true;
+
+        public Builder(int capacity) {
+            mKeys = new String[capacity];
+            mNames = new String[capacity];
+            mSizeTexts = new String[capacity];
+            mETags = new String[capacity];
+            mSizes = new long[capacity];
+            mLastModified = new long[capacity];
+        }
+
+        public int size() {
+            return mCount;
+        }
+
+        public Builder add(String key, long size, String eTag,
+                long lastModified) {
+            return add(key, Util.getFileName(key), size, sizeText(size),
+                    eTag == null ? "" : eTag, lastModified);
+        }
+
+        /* size is the one to show, see LogicalSizes */
+        public Builder add(S3ObjectSummary summary, long size) {
+            return add(summary.getKey(), size, summary.getETag(),
+                    summary.getLastModified() == null ? -1
+                            : summary.getLastModified().getTime());
+        }
+
+        /* copies a row, sharing the strings of the other snapshot */
+        public Builder add(ListingStore store, int pos) {
+            return add(store.getKey(pos), store.getName(pos),
+                    store.getSize(pos), store.getSizeText(pos),
+                    store.getETag(pos), store.getLastModified(pos));
+        }
+
+        private Builder add(String key, String name, long size,
+                String sizeText, String eTag, long lastModified) {
+            if (mCount == mKeys.length) {
+                grow();
+            }
+            if (mCount > 0 && mKeys[mCount - 1].compareTo(key) >= 0) {
+                mSorted = false;
+            }
+            mKeys[mCount] = key;
+            mNames[mCount] = name;
+            mSizes[mCount] = size;
+            mSizeTexts[mCount] = sizeText;
+            mETags[mCount] = eTag;
+            mLastModified[mCount] = lastModified;
+            mCount++;
+            return this;
+        }
+
+        private void grow() {
+            // Arrays.copyOf is not available on API 8
+            int capacity = Math.max(16, mKeys.length * 2);
+            String[] keys = new String[capacity];
+            String[] names = new String[capacity];
+            String[] sizeTexts = new String[capacity];
+            String[] eTags = new String[capacity];
+            long[] sizes = new long[capacity];
+            long[] lastModified = new long[capacity];
+            System.arraycopy(mKeys, 0, keys, 0, mCount);
+            System.arraycopy(mNames, 0, names, 0, mCount);
+            System.arraycopy(mSizeTexts, 0, sizeTexts, 0, mCount);
+            System.arraycopy(mETags, 0, eTags, 0, mCount);
+            System.arraycopy(mSizes, 0, sizes, 0, mCount);
+            System.arraycopy(mLastModified, 0, lastModified, 0, mCount);
+            mKeys = keys;
+            mNames = names;
+            mSizeTexts = sizeTexts;
+            mETags = eTags;
+            mSizes = sizes;
+            mLastModified = lastModified;
+        }
+
+        /*
+         * The snapshot shares the arrays, so anything added afterwards is
+         * only seen by snapshots built later
+         */
+        public ListingStore build() {
+            return new ListingStore(this, null, 0);
+        }
+
+        /*
+         * The rows added so far followed by the rows of tail from position
+         * from on, sharing both instead of copying them
+         */
+        public ListingStore build(ListingStore tail, int from) {
+            return new ListingStore(this, tail.flatten(), from);
+        }
+    }
+}
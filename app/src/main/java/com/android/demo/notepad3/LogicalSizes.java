@@ -0,0 +1,73 @@
+/*
+ * Copyright 2010-2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.android.demo.notepad3;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.Collection;
+
+/*
+ * Remembers how big the notes we uploaded compressed really are. A listing
+ * only tells us the stored size, so for those notes we look up the size
+ * before compression here, as long as the object still has the ETag it had
+ * when we uploaded it.
+ */
+public class LogicalSizes {
+    private static final String PREFS_NAME = "logical_sizes";
+
+    private final SharedPreferences mPrefs;
+
+    public LogicalSizes(Context context) {
+        mPrefs = context.getApplicationContext().getSharedPreferences(
+                PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    public void record(String key, String eTag, long size) {
+        mPrefs.edit().putString(key, eTag + ":" + size).commit();
+    }
+
+    /* for notes that were deleted */
+    public void forget(Collection<String> keys) {
+        SharedPreferences.Editor editor = mPrefs.edit();
+        for (String key : keys) {
+            editor.remove(key);
+        }
+        editor.commit();
+    }
+
+    public void clear() {
+        mPrefs.edit().clear().commit();
+    }
+
+    /* the size before compression, or the stored size if we don't know it */
+    public long get(String key, String eTag, long storedSize) {
+        String value = mPrefs.getString(key, null);
+        if (value == null || eTag == null) {
+            return storedSize;
+        }
+        int split = value.lastIndexOf(':');
+        if (split < 0 || !eTag.equalsIgnoreCase(value.substring(0, split))) {
+            // replaced by something else since
+            return storedSize;
+        }
+        try {
+            return Long.parseLong(value.substring(split + 1));
+        } catch (NumberFormatException e) {
+            return storedSize;
+        }
+    }
+}
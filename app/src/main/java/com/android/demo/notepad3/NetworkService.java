@@ -15,42 +15,144 @@
 
 package com.android.demo.notepad3;
 
-import android.app.IntentService;
+import android.app.Service;
 import android.content.Intent;
 import android.net.Uri;
+import android.os.IBinder;
+import android.util.Log;
 
 import com.amazonaws.mobileconnectors.s3.transfermanager.TransferManager;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
 /*
  * This class handles starting all the downloads/uploads. We use a service to do this
  * so that the transfers will continue even though the activity has ended(ie due to
  * orientation change).
  *
+ * Intents are not handled one at a time on a single thread. Uploads and downloads are
+ * handed to the TransferScheduler which starts them on a pool of worker threads, and
+ * pause/abort/resume run on their own thread so they are never stuck behind a big
+ * file copy. The service stops itself once there is nothing left to transfer.
+ *
+ * Uploads go through an UploadCoalescer first, so saving the same note several
+ * times in a row only sends the last version.
+ *
+ * Notes come to us through the UploadJournal. When the service starts, notes
+ * that an earlier run never got to upload are replayed from the journal a
+ * batch at a time whenever nothing else is going on. Transfers that have a
+ * checkpoint (see TransferCheckpoints) are resumed from it.
+ *
+ * How many transfers and parts run at once isn't fixed, the
+ * ConcurrencyController moves it up and down with what the link can take.
  */
-public class NetworkService extends IntentService {
+public class NetworkService extends Service {
     public static final String S3_KEYS_EXTRA = "keys";
     public static final String ACTION_ABORT = "abort";
     public static final String ACTION_PAUSE = "pause";
     public static final String ACTION_RESUME = "resume";
+    public static final String ACTION_PUT_NOTE = "put_note";
+    public static final String JOB_ID_EXTRA = "job_id";
+    public static final String ACTION_REPLAY = "replay";
     public static final String NOTIF_ID_EXTRA = "notification_id";
 
     private static final String TAG = "NetworkService";
     private static final int DEFAULT_INT = -1;
+    private static final int MAX_CONCURRENT_TRANSFERS = 4;
+    private static final int REPLAY_BATCH_SIZE = 8;
+    // how long an upload waits in case a newer version of it comes along
+    private static final long SAVE_DEBOUNCE_MILLIS = 500;
 
     private TransferManager mTransferManager;
-
-    public NetworkService() {
-        super(TAG);
-    }
+    private TransferTuning mTuning;
+    private TransferScheduler mScheduler;
+    private ConcurrencyController mConcurrency;
+    private UploadCoalescer mCoalescer;
+    // the workers copy files and start transfers, bounded by the scheduler
+    private ExecutorService mWorkers;
+    // the service is only ever stopped from here, see stopIfIdle()
+    private ExecutorService mControl;
+    // the newest command whose work has been handed off, only used on mControl
+    private int mHandledStartId;
+    private UploadJournal mJournal;
+    // journal jobs that still have to be handed to the coalescer
+    private final LinkedList<UploadJournal.Job> mReplay =
+            new LinkedList<UploadJournal.Job>();
+    private final HashSet<String> mSubmittedJobs = new HashSet<String>();
+    private volatile boolean mReplayLoaded;
 
     @Override
     public void onCreate() {
         super.onCreate();
-        mTransferManager = new TransferManager(Util.getCredProvider(this));
+        IdentityResolver.warmUp(this);
+        CredentialManager.get(this);
+        // so the first transfer doesn't wait for the handshakes
+        Util.warmUp(this);
+        mTuning = new TransferTuning();
+        // shared with the rest of the app, see ConnectionTuning for its pool
+        mTransferManager = Util.getTransferManager(this);
+        mTransferManager.setConfiguration(mTuning.toConfiguration());
+        mWorkers = Executors.newCachedThreadPool();
+        mControl = Executors.newSingleThreadExecutor();
+        mScheduler = new TransferScheduler(MAX_CONCURRENT_TRANSFERS, mWorkers);
+        mCoalescer = new UploadCoalescer(mScheduler, mControl,
+                SAVE_DEBOUNCE_MILLIS);
+        mConcurrency = new ConcurrencyController(mScheduler, mTuning);
+        mConcurrency.start();
+        TransferScheduler.OnIdleListener idleListener =
+                new TransferScheduler.OnIdleListener() {
+            @Override
+            public void onIdle() {
+                try {
+                    mControl.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            stopIfIdle(mHandledStartId);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // a transfer we stopped tracking in onDestroy() finished
+                }
+            }
+        };
+        mScheduler.setOnIdleListener(idleListener);
+        mCoalescer.setOnIdleListener(idleListener);
+
+        mJournal = UploadJournal.get(this);
+        mControl.execute(new Runnable() {
+            @Override
+            public void run() {
+                // the command that started us comes next and checks if idle
+                loadReplay();
+            }
+        });
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        // the workers are left alone, a transfer we no longer track may
+        // still be finishing on one of them and idle ones time out anyway.
+        // Uploads still waiting in the coalescer are handed over too.
+        mControl.shutdown();
+        mCoalescer.shutdown();
+        mConcurrency.shutdown();
     }
 
     @Override
-    public void onHandleIntent(Intent intent) {
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    @Override
+    public int onStartCommand(final Intent intent, int flags, final int startId) {
         if (intent != null && intent.getAction() != null) {
             if (intent.getAction().equals(Intent.ACTION_GET_CONTENT) &&
                     intent.getStringArrayExtra(S3_KEYS_EXTRA) != null) {
@@ -58,46 +160,175 @@ public class NetworkService extends IntentService {
             } else if (intent.getAction().equals(Intent.ACTION_SEND) &&
                     intent.getData() != null) {
                 upload(intent.getData());
+            } else if (intent.getAction().equals(ACTION_PUT_NOTE) &&
+                    intent.getStringExtra(JOB_ID_EXTRA) != null) {
+                // after the replay is loaded, so we know what it holds
+                mControl.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        putNote(intent.getStringExtra(JOB_ID_EXTRA));
+                        stopIfIdle(startId);
+                    }
+                });
+                return START_NOT_STICKY;
             } else if (intent.getIntExtra(NOTIF_ID_EXTRA, DEFAULT_INT)
                 != DEFAULT_INT) {
-                int notifId = intent.getIntExtra(NOTIF_ID_EXTRA, DEFAULT_INT);
-                if (intent.getAction().equals(ACTION_PAUSE)) {
-                    pause(notifId);
-                } else if (intent.getAction().equals(ACTION_ABORT)) {
-                    abort(notifId);
-                } else if (intent.getAction().equals(ACTION_RESUME)) {
-                    resume(notifId);
-                }
+                mControl.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        handleControl(intent);
+                        stopIfIdle(startId);
+                    }
+                });
+                return START_NOT_STICKY;
             }
         }
+        mControl.execute(new Runnable() {
+            @Override
+            public void run() {
+                stopIfIdle(startId);
+            }
+        });
+        return START_NOT_STICKY;
     }
 
-    private void abort(int notifId) {
+    private void handleControl(Intent intent) {
+        int notifId = intent.getIntExtra(NOTIF_ID_EXTRA, DEFAULT_INT);
+        // looked up once, it may be evicted any time after it finished
         TransferModel model = TransferModel.getTransferModel(notifId);
+        if (model == null) {
+            return;
+        }
+        if (intent.getAction().equals(ACTION_PAUSE)) {
+            pause(model);
+        } else if (intent.getAction().equals(ACTION_ABORT)) {
+            abort(model);
+        } else if (intent.getAction().equals(ACTION_RESUME)) {
+            resume(model);
+        }
+    }
+
+    /*
+     * Only runs on mControl, after the work of every command up to startId.
+     * stopSelfResult() then refuses if a newer command came in meanwhile, so
+     * the service can't be destroyed with that one still queued here.
+     */
+    private void stopIfIdle(int startId) {
+        mHandledStartId = Math.max(mHandledStartId, startId);
+        if (mReplayLoaded && mCoalescer.isIdle() && mScheduler.isIdle()
+                && !replayNextBatch()) {
+            stopSelfResult(startId);
+        }
+    }
+
+    private void loadReplay() {
+        for (TransferCheckpoints.Checkpoint checkpoint
+                : TransferCheckpoints.get(this).loadAll()) {
+            try {
+                TransferModel model;
+                if (checkpoint.getKind() == TransferCheckpoints.KIND_UPLOAD) {
+                    model = new UploadModel(this, checkpoint, mTransferManager,
+                            mTuning);
+                } else {
+                    model = new DownloadModel(this, checkpoint,
+                            mTransferManager, mTuning);
+                }
+                // it is PAUSED, so the scheduler resumes it
+                mScheduler.enqueue(model, TransferScheduler.PRIORITY_NORMAL);
+            } catch (Exception e) {
+                // a token we can't read anymore
+                Log.e(TAG, "", e);
+                TransferCheckpoints.get(this).delete(checkpoint.getId());
+            }
+        }
+        try {
+            List<UploadJournal.Job> pending = mJournal.getPending();
+            synchronized (mReplay) {
+                mReplay.addAll(pending);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "", e);
+        }
+        mReplayLoaded = true;
+    }
+
+    /* Hands the next few journal jobs over, returns false if there were none */
+    private boolean replayNextBatch() {
+        List<UploadJournal.Job> batch = new ArrayList<UploadJournal.Job>();
+        synchronized (mReplay) {
+            while (batch.size() < REPLAY_BATCH_SIZE && !mReplay.isEmpty()) {
+                batch.add(mReplay.removeFirst());
+            }
+        }
+        boolean submitted = false;
+        for (UploadJournal.Job job : batch) {
+            submitted |= submitJob(job, TransferScheduler.PRIORITY_LOW);
+        }
+        return submitted;
+    }
+
+    private void abort(TransferModel model) {
         model.abort();
     }
 
     private void download(String[] keys) {
         for (int i = 0; i < keys.length; i++) {
             DownloadModel model = new DownloadModel(this, keys[i],
-                    mTransferManager);
-            model.download();
+                    mTransferManager, mTuning);
+            mScheduler.enqueue(model, TransferScheduler.PRIORITY_NORMAL);
         }
     }
 
-    private void pause(int notifId) {
-        TransferModel model = TransferModel.getTransferModel(notifId);
+    private void pause(TransferModel model) {
         model.pause();
     }
 
-    private void resume(int notifId) {
-        TransferModel model = TransferModel.getTransferModel(notifId);
-        model.resume();
+    private void resume(TransferModel model) {
+        if (model.getStatus() == TransferModel.Status.PAUSED) {
+            mScheduler.enqueue(model, TransferScheduler.PRIORITY_HIGH);
+        }
     }
 
-    /* We use a new thread for upload because we have to copy the file */
+    /*
+     * The copy happens on one of the workers once the scheduler starts the
+     * upload. Uploads come from the user saving a note so they go ahead of
+     * downloads.
+     */
     private void upload(Uri uri) {
-        UploadModel model = new UploadModel(this, uri, mTransferManager);
-        new Thread(model.getUploadRunnable()).run();
+        UploadModel model = new UploadModel(this, uri, mTransferManager,
+                mTuning);
+        mCoalescer.submit(model.getFileName(), model,
+                TransferScheduler.PRIORITY_HIGH);
+    }
+
+    private void putNote(String jobId) {
+        try {
+            UploadJournal.Job job = mJournal.getJob(jobId);
+            if (job != null) {
+                submitJob(job, TransferScheduler.PRIORITY_HIGH);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "", e);
+        }
+    }
+
+    /* returns false if the job was submitted already or can't be read */
+    private boolean submitJob(UploadJournal.Job job, int priority) {
+        synchronized (mSubmittedJobs) {
+            if (!mSubmittedJobs.add(job.getId())) {
+                return false;
+            }
+        }
+        try {
+            UploadModel model = new UploadModel(this, job, mTransferManager,
+                    mTuning);
+            mCoalescer.submit(job.getFileName(), model, priority);
+            return true;
+        } catch (IOException e) {
+            // the staged copy is gone or corrupt, there is nothing to send
+            Log.e(TAG, "", e);
+            mJournal.complete(job);
+            return false;
+        }
     }
 }
@@ -16,12 +16,7 @@
 
 package com.android.demo.notepad3;
 
-import java.io.File;
-import java.io.FileOutputStream;
-import java.util.ArrayList;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import com.android.demo.notepad3.TransferModel.Status;
 
@@ -29,7 +24,6 @@ import android.app.Activity;
 import android.app.ProgressDialog;
 import android.content.ActivityNotFoundException;
 import android.content.Intent;
-import android.net.Uri;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.View;
@@ -42,13 +36,13 @@ import android.widget.Toast;
 
 public class NoteEdit extends Activity {
 
-	private static final int REFRESH_DELAY = 500;
-
 	private EditText mTitleText;
 	private EditText mBodyText;
-	private Timer mTimer;
 	private ProgressDialog pd;
-	private List<TransferModel> mModels = new ArrayList<TransferModel>();
+	// the transfers tell us when they change, see TransferEvents
+	private TransferEvents.Listener mTransferListener;
+	// the journal job of the last save, only its upload is ours
+	private String mJobId;
 
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
@@ -74,36 +68,30 @@ public class NoteEdit extends Activity {
 
 		});
 
-		// make timer that will refresh all the transfer views
-		mTimer = new Timer();
-		TimerTask task = new TimerTask() {
+		mTransferListener = new TransferEvents.Listener() {
 			@Override
-			public void run() {
-				NoteEdit.this.runOnUiThread(new Runnable() {
-					@Override
-					public void run() {
-						syncModels();
-						refresh();
+			public void onTransfersChanged(List<TransferModel> changed) {
+				for (TransferModel model : changed) {
+					if (isFinishing()) {
+						return;
+					}
+					if (mJobId != null && model instanceof UploadModel
+							&& mJobId.equals(((UploadModel) model).getJobId())) {
+						refresh(model);
 					}
-				});
+				}
 			}
 		};
-		mTimer.schedule(task, 0, REFRESH_DELAY);
+		TransferEvents.register(mTransferListener);
 	}
 
 	@Override
 	protected void onDestroy() {
 		super.onDestroy();
-		mTimer.cancel();
+		TransferEvents.unregister(mTransferListener);
 		pd.dismiss();
 	}
 
-	@Override
-	protected void onStop() {
-		super.onStop();
-		mTimer.purge();
-	}
-
 	private void saveData() {
 
 		if (!pd.isShowing())
@@ -121,18 +109,9 @@ public class NoteEdit extends Activity {
 				return;
 			}
 
-			File saveFile = new File(getFilesDir().getPath() + File.separator
-					+ title + ".txt");
-
-			FileOutputStream outStream = new FileOutputStream(saveFile, false);
-			outStream.write(mBodyText.getText().toString().getBytes());
-			outStream.close();
-
-			Uri uri = Uri.fromFile(saveFile);
-
-			if (uri != null) {
-				TransferController.upload(this, uri);
-			}
+			// journaled first, so it gets uploaded even if we get killed
+			mJobId = TransferController.putNote(this, title + ".txt",
+					mBodyText.getText().toString().getBytes());
 
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -140,22 +119,6 @@ public class NoteEdit extends Activity {
 		}
 	}
 
-	/* makes sure that we are up to date on the transfers */
-	private void syncModels() {
-		List<TransferModel> models = TransferModel.getAllTransfers();
-		if (mModels.size() != models.size()) {
-			// add the transfers we haven't seen yet
-			mModels = models;
-		}
-	}
-
-	/* refresh method for public use */
-	public void refresh() {
-
-		if (mModels.size() > 0)
-			refresh(mModels.get(0));
-	}
-
 	/*
 	 * We use this method within the class so that we can have the UI update
 	 * quickly when the user selects something
@@ -190,19 +153,24 @@ public class NoteEdit extends Activity {
 			pd.setMessage("Uploading " + model.getFileName() + "..." + progress
 					+ "");
 
-			if (progress == 0 || progress == -1 || progress == 100) {
+			if (status == Status.COMPLETED) {
 				pd.hide();
 
-				File file = new File(model.getUri().getPath());
+				TransferModel.removeTransferModel(model.getId());
 
-				if (file.exists()) {
-					file.delete();
-				}
+				Toast.makeText(getApplicationContext(),
+						"Save to AWS S3 succeed.", Toast.LENGTH_SHORT).show();
+				finish();
+
+			} else if (status == Status.CANCELED) {
+				pd.hide();
 
 				TransferModel.removeTransferModel(model.getId());
 
+				// still in the journal, replayed the next time we start
 				Toast.makeText(getApplicationContext(),
-						"Save to AWS S3 succeed.", Toast.LENGTH_SHORT).show();
+						"Save to AWS S3 failed, it will be tried again later.",
+						Toast.LENGTH_LONG).show();
 				finish();
 
 			}
@@ -215,11 +183,9 @@ public class NoteEdit extends Activity {
 	private void pause(TransferModel model) {
 		if (model.getStatus() == Status.IN_PROGRESS) {
 			TransferController.pause(this, model);
-			model.pause();
 			refresh(model);
 		} else {
 			TransferController.resume(this, model);
-			model.resume();
 			refresh(model);
 		}
 	}
@@ -227,7 +193,6 @@ public class NoteEdit extends Activity {
 	/* What to do when user presses abort button */
 	private void abort(TransferModel model) {
 		TransferController.abort(this, model);
-		model.abort();
 		refresh(model);
 	}
 
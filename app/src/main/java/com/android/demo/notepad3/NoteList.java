@@ -30,7 +30,7 @@ import android.view.ViewGroup;
 import android.webkit.MimeTypeMap;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
-import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
 import android.widget.Button;
 import android.widget.CheckBox;
 import android.widget.ListView;
@@ -42,13 +42,13 @@ import com.amazonaws.services.s3.model.S3ObjectSummary;
 import com.android.demo.notepad3.TransferModel.Status;
 
 import java.io.File;
-import java.util.ArrayList;
-import java.util.Collection;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Set;
 
 /*
  * Activity where user can see the items in the S3 bucket and download stuff
@@ -56,17 +56,23 @@ import java.util.TimerTask;
  */
 public class NoteList extends Activity {
 
-	private static final int REFRESH_DELAY = 500;
+	private static final String TAG = "NoteList";
+	// how many listing pages may be waiting for the UI thread at once
+	private static final int MAX_PENDING_PAGES = 2;
 
 	private ListView mList;
 	private AmazonS3Client mClient;
 	private ObjectAdapter mAdapter;
-	// keeps track of the objects the user has selected
-	private HashSet<S3ObjectSummary> mSelectedObjects = new HashSet<S3ObjectSummary>();
+	// keeps track of the objects the user has selected, by position in the
+	// adapter's snapshot. It is carried over by key when the snapshot changes
+	private BitSet mSelectedObjects = new BitSet();
 	private Button mRefreshButton;
+	private Button mDeleteButton;
+	private RefreshTask mRefreshTask;
+	private ListingCache mListingCache;
 
-	private Timer mTimer;
-	private List<TransferModel> mModels = new ArrayList<TransferModel>();
+	// the transfers tell us when they change, see TransferEvents
+	private TransferEvents.Listener mTransferListener;
 
 	/** Called when the activity is first created. */
 	@Override
@@ -76,6 +82,7 @@ public class NoteList extends Activity {
 		setTitle("Note list");
 		// initialize the client
 		mClient = Util.getS3Client(NoteList.this);
+		mListingCache = new ListingCache(this);
 
 		mList = (ListView) findViewById(R.id.list);
 
@@ -89,67 +96,246 @@ public class NoteList extends Activity {
 			@Override
 			public void onClick(View v) {
 				// download all the objects that were selected
-				String[] keys = new String[mSelectedObjects.size()];
-				int i = 0;
-				for (S3ObjectSummary obj : mSelectedObjects) {
-					keys[i] = obj.getKey();
-					i++;
-				}
+				String[] keys = mAdapter.getSelectedKeys();
 				TransferController.download(NoteList.this, keys);
 			}
 		});
 
+		mDeleteButton = (Button) findViewById(R.id.delete);
+		mDeleteButton.setOnClickListener(new OnClickListener() {
+			@Override
+			public void onClick(View v) {
+				String[] keys = mAdapter.getSelectedKeys();
+				if (keys.length == 0) {
+					Toast.makeText(NoteList.this, R.string.nothing_selected,
+							Toast.LENGTH_SHORT).show();
+					return;
+				}
+				new DeleteTask(Arrays.asList(keys)).execute();
+			}
+		});
+
 		findViewById(R.id.refresh).setOnClickListener(new OnClickListener() {
 			@Override
 			public void onClick(View v) {
-				new RefreshTask().execute();
+				startRefresh();
 			}
 		});
 
-		new RefreshTask().execute();
+		startRefresh();
 
-		// make timer that will refresh all the transfer views
-		mTimer = new Timer();
-		TimerTask task = new TimerTask() {
+		mTransferListener = new TransferEvents.Listener() {
 			@Override
-			public void run() {
-				NoteList.this.runOnUiThread(new Runnable() {
-					@Override
-					public void run() {
-						syncModels();
-						refresh();
-					}
-				});
+			public void onTransfersChanged(List<TransferModel> changed) {
+				for (TransferModel model : changed) {
+					refresh(model);
+				}
+				updateTitle();
 			}
 		};
-//		mTimer.schedule(task, 0, REFRESH_DELAY);
+		TransferEvents.register(mTransferListener);
+	}
+
+	@Override
+	protected void onDestroy() {
+		super.onDestroy();
+		TransferEvents.unregister(mTransferListener);
+		if (mRefreshTask != null) {
+			mRefreshTask.stop();
+		}
+	}
+
+	private void startRefresh() {
+		if (mRefreshTask != null) {
+			mRefreshTask.stop();
+		}
+		mRefreshTask = new RefreshTask();
+		mRefreshTask.execute();
+	}
+
+	/*
+	 * Deletes the selected notes in batches (see BatchDeleter) and lists
+	 * again once they are gone. Notes that couldn't be deleted stay selected.
+	 */
+	private class DeleteTask extends AsyncTask<Void, Void, BatchDeleter.Result> {
+		private final List<String> mKeys;
+
+		private DeleteTask(List<String> keys) {
+			mKeys = keys;
+		}
+
+		@Override
+		protected void onPreExecute() {
+			mDeleteButton.setEnabled(false);
+			mDeleteButton.setText(R.string.deleting);
+		}
+
+		@Override
+		protected BatchDeleter.Result doInBackground(Void... params) {
+			try {
+				return Util.deleteNotes(NoteList.this, mKeys);
+			} catch (InterruptedException e) {
+				return null;
+			}
+		}
+
+		@Override
+		protected void onPostExecute(BatchDeleter.Result result) {
+			mDeleteButton.setEnabled(true);
+			mDeleteButton.setText(R.string.delete_selected);
+			if (result == null) {
+				return;
+			}
+			if (!result.isSuccessful()) {
+				for (String key : result.getFailures().keySet()) {
+					Log.e(TAG, "Couldn't delete " + key + ", "
+							+ result.getFailures().get(key));
+				}
+				Toast.makeText(NoteList.this, "Couldn't delete "
+						+ result.getFailures().size() + " of " + mKeys.size()
+						+ " notes", Toast.LENGTH_LONG).show();
+			}
+			// gone from the list right away, not once the listing gets to them
+			Set<String> deleted = new HashSet<String>(mKeys);
+			deleted.removeAll(result.getFailures().keySet());
+			ListingStore store = mAdapter.getStore();
+			ListingStore.Builder left = new ListingStore.Builder(store.size());
+			for (int i = 0; i < store.size(); i++) {
+				if (!deleted.contains(store.getKey(i))) {
+					left.add(store, i);
+				}
+			}
+			mAdapter.setStore(left.build());
+			// the refresh carries the selection over to what is left
+			startRefresh();
+		}
 	}
 
+	/*
+	 * Shows the cached listing first, then streams the real listing in page
+	 * by page. Each page is diffed against what the adapter was showing on
+	 * this thread, so the UI thread only swaps in the new snapshot. The
+	 * pages are written to the cache as they arrive for next time.
+	 */
 	private class RefreshTask extends
-			AsyncTask<Void, Void, List<S3ObjectSummary>> {
+			AsyncTask<Void, RefreshTask.Update, Boolean> {
+		private ObjectLister mLister;
+		private ListingStore mOld;
+		private String mPrefix;
+
 		@Override
 		protected void onPreExecute() {
 			mRefreshButton.setEnabled(false);
 			mRefreshButton.setText(R.string.refreshing);
+			mLister = new ObjectLister(mClient,
+					Constants.BUCKET_NAME.toLowerCase(Locale.US),
+					MAX_PENDING_PAGES);
+			mOld = mAdapter.getStore();
+			mPrefix = IdentityResolver.peekPrefix();
 		}
 
 		@Override
-		protected List<S3ObjectSummary> doInBackground(Void... params) {
-			// get all the objects in bucket
-			return mClient.listObjects(
-					Constants.BUCKET_NAME.toLowerCase(Locale.US),
-					Util.getPrefix(NoteList.this)).getObjectSummaries();
+		protected Boolean doInBackground(Void... params) {
+			ListingCache.Writer writer = null;
+			try {
+				// only unknown the first time the app runs, then resolve it here
+				final String prefix = mPrefix != null ? mPrefix
+						: Util.getPrefix(NoteList.this);
+				if (mOld.size() == 0) {
+					mOld = mListingCache.load(prefix);
+					ListingDiff.Result cached = new ListingDiff(
+							ListingStore.EMPTY).compute(mOld, true);
+					publishProgress(new Update(cached, false));
+				}
+
+				final LogicalSizes sizes = new LogicalSizes(NoteList.this);
+				final ListingDiff diff = new ListingDiff(mOld);
+				final ListingCache.Writer cacheWriter = mListingCache
+						.edit(prefix);
+				writer = cacheWriter;
+				// get all the objects in bucket, page by page
+				boolean finished = mLister.list(prefix,
+						new ObjectLister.PageCallback() {
+					@Override
+					public void onPage(List<S3ObjectSummary> page) {
+						try {
+							cacheWriter.append(page);
+						} catch (IOException e) {
+							Log.e(TAG, "", e);
+						}
+						ListingStore.Builder listed = new ListingStore.Builder(
+								page.size());
+						for (S3ObjectSummary obj : page) {
+							// removes the "folder" from showing up
+							if (!obj.getKey().equals(prefix)) {
+								// compressed notes show how long they really are
+								listed.add(obj, sizes.get(obj.getKey(),
+										obj.getETag(), obj.getSize()));
+							}
+						}
+						// only this page's keys are diffed
+						publishProgress(new Update(
+								diff.addPage(listed.build()), true));
+					}
+				});
+				if (finished) {
+					writer.commit();
+					writer = null;
+					// drop whatever sorted after the last listed key
+					publishProgress(new Update(diff.finish(), false));
+				}
+				return finished;
+			} catch (InterruptedException e) {
+				return false;
+			} catch (Exception e) {
+				Log.e(TAG, "", e);
+				return false;
+			} finally {
+				if (writer != null) {
+					writer.abort();
+				}
+			}
+		}
+
+		@Override
+		protected void onProgressUpdate(Update... updates) {
+			for (Update update : updates) {
+				if (!update.result.isEmpty()) {
+					mAdapter.setStore(update.result.store);
+				}
+				if (update.listingPage) {
+					mLister.pageConsumed();
+				}
+			}
+		}
+
+		@Override
+		protected void onPostExecute(Boolean finished) {
+			mRefreshButton.setEnabled(true);
+			mRefreshButton.setText(R.string.refresh);
 		}
 
 		@Override
-		protected void onPostExecute(List<S3ObjectSummary> objects) {
-			// now that we have all the keys, add them all to the adapter
-			mAdapter.clear();
-			mAdapter.addAll(objects);
-			mSelectedObjects.clear();
+		protected void onCancelled() {
 			mRefreshButton.setEnabled(true);
 			mRefreshButton.setText(R.string.refresh);
 		}
+
+		public void stop() {
+			mLister.cancel();
+			cancel(true);
+		}
+
+		/* A diff to apply and whether it holds up a listing page */
+		private class Update {
+			private final ListingDiff.Result result;
+			private final boolean listingPage;
+
+			private Update(ListingDiff.Result result, boolean listingPage) {
+				this.result = result;
+				this.listingPage = listingPage;
+			}
+		}
 	}
 
 	/*
@@ -160,51 +346,87 @@ public class NoteList extends Activity {
 		@Override
 		public void onItemClick(AdapterView<?> parent, View view, int pos,
 				long id) {
-			S3ObjectSummary item = mAdapter.getItem(pos);
-			boolean checked = false;
-			// try removing, if it wasn't there add
-			if (!mSelectedObjects.remove(item)) {
-				mSelectedObjects.add(item);
-				checked = true;
-			}
+			boolean checked = !mSelectedObjects.get(pos);
+			mSelectedObjects.set(pos, checked);
 			((ObjectAdapter.ViewHolder) view.getTag()).checkbox
 					.setChecked(checked);
 		}
 	}
 
-	/* Adapter for all the S3 objects */
-	private class ObjectAdapter extends ArrayAdapter<S3ObjectSummary> {
+	/*
+	 * Adapter for all the S3 objects. The snapshot is never modified in place,
+	 * a refresh hands over a whole new one, and everything a row shows was
+	 * worked out when the snapshot was built.
+	 */
+	private class ObjectAdapter extends BaseAdapter {
+		private final Context mContext;
+		private ListingStore mStore = ListingStore.EMPTY;
+
 		public ObjectAdapter(Context context) {
-			super(context, R.layout.bucket_row);
+			mContext = context;
+		}
+
+		public ListingStore getStore() {
+			return mStore;
+		}
+
+		/* swaps in a new snapshot, carrying the selection over by key */
+		public void setStore(ListingStore store) {
+			BitSet selected = new BitSet(store.size());
+			for (int i = mSelectedObjects.nextSetBit(0); i >= 0; i = mSelectedObjects
+					.nextSetBit(i + 1)) {
+				int pos = store.indexOf(mStore.getKey(i));
+				if (pos >= 0) {
+					selected.set(pos);
+				}
+			}
+			mSelectedObjects = selected;
+			mStore = store;
+			notifyDataSetChanged();
+		}
+
+		public String[] getSelectedKeys() {
+			String[] keys = new String[mSelectedObjects.cardinality()];
+			int i = 0;
+			for (int pos = mSelectedObjects.nextSetBit(0); pos >= 0; pos = mSelectedObjects
+					.nextSetBit(pos + 1)) {
+				keys[i++] = mStore.getKey(pos);
+			}
+			return keys;
+		}
+
+		@Override
+		public int getCount() {
+			return mStore.size();
+		}
+
+		@Override
+		public String getItem(int pos) {
+			return mStore.getKey(pos);
+		}
+
+		@Override
+		public long getItemId(int pos) {
+			return pos;
 		}
 
 		@Override
 		public View getView(int pos, View convertView, ViewGroup parent) {
 			ViewHolder holder;
 			if (convertView == null) {
-				convertView = LayoutInflater.from(getContext()).inflate(
+				convertView = LayoutInflater.from(mContext).inflate(
 						R.layout.bucket_row, null);
 				holder = new ViewHolder(convertView);
 				convertView.setTag(holder);
 			} else {
 				holder = (ViewHolder) convertView.getTag();
 			}
-			S3ObjectSummary summary = getItem(pos);
-			holder.checkbox.setChecked(mSelectedObjects.contains(summary));
-			holder.key.setText(Util.getFileName(summary.getKey()));
-			holder.size.setText(String.valueOf(summary.getSize()));
+			holder.checkbox.setChecked(mSelectedObjects.get(pos));
+			holder.key.setText(mStore.getName(pos));
+			holder.size.setText(mStore.getSizeText(pos));
 			return convertView;
 		}
 
-		public void addAll(Collection<? extends S3ObjectSummary> collection) {
-			for (S3ObjectSummary obj : collection) {
-				// if statement removes the "folder" from showing up
-				if (!obj.getKey().equals(Util.getPrefix(NoteList.this))) {
-					add(obj);
-				}
-			}
-		}
-
 		private class ViewHolder {
 			private CheckBox checkbox;
 			private TextView key;
@@ -218,20 +440,21 @@ public class NoteList extends Activity {
 		}
 	}
 
-	/* makes sure that we are up to date on the transfers */
-	private void syncModels() {
-		List<TransferModel> models = TransferModel.getAllTransfers();
-		if (mModels.size() != models.size()) {
-			// add the transfers we haven't seen yet
-			mModels = models;
+	/* how all the running transfers are doing together, see TransferProgress */
+	private void updateTitle() {
+		TransferProgress.Snapshot total = TransferProgress.getTotal();
+		if (total.bytesPerSecond <= 0) {
+			setTitle("Note list");
+			return;
 		}
-	}
-
-	/* refresh method for public use */
-	public void refresh() {
-
-		for (int i = 0; i < mModels.size(); i++)
-			refresh(mModels.get(0));
+		String title = "Note list - " + total.bytesPerSecond / 1024 + " KB/s";
+		if (total.percent >= 0) {
+			title += ", " + total.percent + "%";
+		}
+		if (total.etaMillis >= 0) {
+			title += ", " + (total.etaMillis + 999) / 1000 + "s left";
+		}
+		setTitle(title);
 	}
 
 	/*
@@ -286,15 +509,16 @@ public class NoteList extends Activity {
 
 	}
 
-	/* What to do when user presses pause button */
+	/*
+	 * What to do when user presses pause button. The service does the
+	 * pausing on its own thread, the status change comes back as an event.
+	 */
 	private void pause(TransferModel model) {
 		if (model.getStatus() == Status.IN_PROGRESS) {
 			TransferController.pause(this, model);
-			model.pause();
 			refresh(model);
 		} else {
 			TransferController.resume(this, model);
-			model.resume();
 			refresh(model);
 		}
 	}
@@ -302,7 +526,6 @@ public class NoteList extends Activity {
 	/* What to do when user presses abort button */
 	private void abort(TransferModel model) {
 		TransferController.abort(this, model);
-		model.abort();
 		refresh(model);
 	}
 
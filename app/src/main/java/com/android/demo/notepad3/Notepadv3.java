@@ -16,18 +16,18 @@
 
 package com.android.demo.notepad3;
 
-import com.amazonaws.services.s3.AmazonS3Client;
-
 import android.app.Activity;
 import android.content.Intent;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.util.Log;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.widget.Button;
 import android.widget.Toast;
 
 public class Notepadv3 extends Activity implements OnClickListener {
+	private static final String TAG = "Notepadv3";
 
 	private Button btn_add_note, btn_get_note;
 
@@ -43,7 +43,15 @@ public class Notepadv3 extends Activity implements OnClickListener {
 		btn_add_note.setOnClickListener(this);
 		btn_get_note.setOnClickListener(this);
 
-		new CheckBucketExists().execute();
+		// resolve the key prefix and credentials before anything needs them
+		IdentityResolver.warmUp(this);
+		CredentialManager.get(this);
+		// notes saved while we were offline or killed
+		TransferController.replayPending(this);
+
+		if (!new BucketBootstrap(this).isKnownToExist()) {
+			new CheckBucketExists().execute();
+		}
 	}
 
 	@Override
@@ -67,44 +75,28 @@ public class Notepadv3 extends Activity implements OnClickListener {
 		}
 	}
 
+	/*
+	 * Only runs when the BucketBootstrap hasn't seen the bucket lately, a
+	 * normal launch doesn't touch the network here. Uploads create the bucket
+	 * themselves if it went missing since.
+	 */
 	private class CheckBucketExists extends AsyncTask<Object, Void, Boolean> {
 
 		@Override
 		protected Boolean doInBackground(Object... params) {
-			AmazonS3Client sS3Client = Util
-					.getS3Client(getApplicationContext());
-			return Util.doesBucketExist();
-		}
-
-		@Override
-		protected void onPostExecute(Boolean result) {
-			if (!result.booleanValue()) {
-				new CreateBucket().execute();
-			} else {
-				System.out.println("exist");
-			}
-		}
-	}
-
-	private class CreateBucket extends AsyncTask<Object, Void, Boolean> {
-
-		@Override
-		protected Boolean doInBackground(Object... params) {
-			AmazonS3Client sS3Client = Util
-					.getS3Client(getApplicationContext());
-			if (!Util.doesBucketExist()) {
-				Util.createBucket();
-				return true;
+			try {
+				return new BucketBootstrap(getApplicationContext())
+						.ensureBucket();
+			} catch (Exception e) {
+				// offline, the first upload tries again
+				Log.e(TAG, "", e);
+				return false;
 			}
-			return false;
 		}
 
 		@Override
-		protected void onPostExecute(Boolean result) {
-			if (!result) {
-				Toast.makeText(getApplicationContext(),
-						"Bucket already exists", Toast.LENGTH_SHORT).show();
-			} else {
+		protected void onPostExecute(Boolean created) {
+			if (created.booleanValue()) {
 				Toast.makeText(getApplicationContext(),
 						"Bucket successfully created!", Toast.LENGTH_SHORT)
 						.show();
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2010-2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.android.demo.notepad3;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+/*
+ * Lists everything under a prefix, following the continuation markers until
+ * the listing is no longer truncated. Each page is handed to the PageCallback
+ * as soon as it arrives instead of waiting for the whole listing.
+ *
+ * At most maxPendingPages pages are handed out before the consumer has called
+ * pageConsumed(), so a slow consumer makes the lister wait instead of piling
+ * pages up in memory.
+ */
+public class ObjectLister {
+    private static final int PAGE_SIZE = 1000;
+
+    public interface PageCallback {
+        void onPage(List<S3ObjectSummary> page);
+    }
+
+    private final AmazonS3Client mClient;
+    private final String mBucket;
+    private final int mMaxPendingPages;
+    private final Semaphore mPendingPages;
+    private volatile boolean mCanceled;
+
+    public ObjectLister(AmazonS3Client client, String bucket,
+            int maxPendingPages) {
+        mClient = client;
+        mBucket = bucket;
+        mMaxPendingPages = maxPendingPages;
+        mPendingPages = new Semaphore(maxPendingPages);
+    }
+
+    /*
+     * Blocks the calling thread until the whole prefix has been listed or
+     * the lister is canceled. Returns false if it was canceled.
+     */
+    public boolean list(String prefix, PageCallback callback)
+            throws InterruptedException {
+        String marker = null;
+        while (!mCanceled) {
+            ObjectListing listing = mClient.listObjects(new ListObjectsRequest()
+                    .withBucketName(mBucket)
+                    .withPrefix(prefix)
+                    .withMarker(marker)
+                    .withMaxKeys(PAGE_SIZE));
+
+            mPendingPages.acquire();
+            if (mCanceled) {
+                return false;
+            }
+            List<S3ObjectSummary> page = listing.getObjectSummaries();
+            callback.onPage(page);
+
+            if (!listing.isTruncated()) {
+                return true;
+            }
+            // NextMarker is only returned when a delimiter is used, otherwise
+            // we continue from the last key we were given
+            marker = listing.getNextMarker();
+            if (marker == null && !page.isEmpty()) {
+                marker = page.get(page.size() - 1).getKey();
+            }
+            if (marker == null) {
+                // starting over from the top would never end
+                throw new AmazonClientException("Listing of " + mBucket
+                        + " is truncated but gave nothing to continue from");
+            }
+        }
+        return false;
+    }
+
+    /* Called by the consumer once it is done with a page */
+    public void pageConsumed() {
+        mPendingPages.release();
+    }
+
+    public void cancel() {
+        mCanceled = true;
+        // wake up the lister if it is waiting on the consumer
+        mPendingPages.release(mMaxPendingPages);
+    }
+
+    public boolean isCanceled() {
+        return mCanceled;
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ * Copyright 2010-2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.android.demo.notepad3;
+
+import android.util.Log;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ProgressEvent;
+import com.amazonaws.services.s3.model.ProgressListener;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.util.BinaryUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Downloads a large object as a number of ranged GETs that run side by side,
+ * each writing its range straight into the right place in the target file.
+ *
+ * Ranges that finished are remembered, so calling run() again after an
+ * abort() only fetches what is still missing. run() blocks until the
+ * download is done, so call it off the UI thread.
+ *
+ * Every range is asked for with the ETag we started with, so we can't end up
+ * stitching two versions of the object together. When that ETag is a plain
+ * MD5 we also check the content. MD5 only goes front to back, so the range
+ * at the head of the file is hashed from its buffer as it is written; a
+ * range that finished ahead of it is read back once the head gets to it,
+ * which it does while the later ones are still coming in.
+ */
+public class ParallelDownload {
+    private static final String TAG = "ParallelDownload";
+    private static final int BUFFER_SIZE = 8192;
+
+    // the per download limit is enforced by how many fetchers we submit
+    private static ExecutorService sRangeExecutor;
+
+    private final AmazonS3 mClient;
+    private final String mBucket;
+    private final String mKey;
+    private final String mETag;
+    private final File mFile;
+    private final long mLength;
+    private final long mPartSize;
+    private final int mConcurrency;
+    private final boolean[] mDone;
+    private final AtomicLong mBytesDone = new AtomicLong();
+    private int mNextRange;
+    // guards the digest, ranges before mDigested have been hashed and so
+    // have the first mHeadFed bytes of the one at mDigested
+    private final Object mDigestLock = new Object();
+    private MessageDigest mDigest;
+    private volatile int mDigested;
+    private long mHeadFed;
+    private volatile boolean mAborted;
+    // only gets the byte counts and resets, not the start/complete events
+    private volatile ProgressListener mProgressListener;
+
+    public ParallelDownload(AmazonS3 client, String bucket, String key,
+            String eTag, File file, long length, TransferTuning tuning) {
+        mClient = client;
+        mBucket = bucket;
+        mKey = key;
+        mETag = eTag;
+        mFile = file;
+        mLength = length;
+        mPartSize = tuning.getDownloadPartSize();
+        mConcurrency = tuning.getDownloadConcurrency();
+        mDone = new boolean[(int) ((length + mPartSize - 1) / mPartSize)];
+    }
+
+    private static synchronized ExecutorService getRangeExecutor() {
+        if (sRangeExecutor == null) {
+            sRangeExecutor = Executors.newCachedThreadPool();
+        }
+        return sRangeExecutor;
+    }
+
+    public void run() throws IOException, InterruptedException {
+        // an abort() from before we got here still counts, see clearAbort()
+        checkAborted();
+        synchronized (this) {
+            mNextRange = 0;
+        }
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.setLength(mLength);
+        } finally {
+            file.close();
+        }
+
+        List<Future<Void>> fetchers = new ArrayList<Future<Void>>();
+        int count = Math.min(mConcurrency, mDone.length);
+        for (int i = 0; i < count; i++) {
+            fetchers.add(getRangeExecutor().submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    int range;
+                    while ((range = nextRange()) != -1) {
+                        fetch(range);
+                    }
+                    return null;
+                }
+            }));
+        }
+        try {
+            for (Future<Void> fetcher : fetchers) {
+                fetcher.get();
+            }
+            verify();
+        } catch (ExecutionException e) {
+            mAborted = true;
+            // IOException(Throwable) is not available on API 8
+            IOException ioe = new IOException("Download of " + mKey + " failed");
+            ioe.initCause(e.getCause());
+            throw ioe;
+        } finally {
+            for (Future<Void> fetcher : fetchers) {
+                fetcher.cancel(true);
+            }
+        }
+    }
+
+    /* next range nobody has fetched yet, or -1 when there are none left */
+    private synchronized int nextRange() {
+        while (mNextRange < mDone.length && mDone[mNextRange]) {
+            mNextRange++;
+        }
+        return mNextRange < mDone.length ? mNextRange++ : -1;
+    }
+
+    private void fetch(int range) throws IOException {
+        long start = range * mPartSize;
+        long end = Math.min(start + mPartSize, mLength) - 1;
+        GetObjectRequest request = new GetObjectRequest(mBucket, mKey);
+        request.setRange(start, end);
+        if (mETag != null) {
+            request.withMatchingETagConstraint(mETag);
+        }
+
+        long written = 0;
+        RandomAccessFile out = null;
+        InputStream in = null;
+        try {
+            checkAborted();
+            S3Object object = mClient.getObject(request);
+            if (object == null) {
+                throw new IOException(mKey + " changed while downloading it");
+            }
+            in = object.getObjectContent();
+            out = new RandomAccessFile(mFile, "rw");
+            out.seek(start);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                checkAborted();
+                out.write(buffer, 0, read);
+                digestWritten(range, written, buffer, read);
+                written += read;
+                mBytesDone.addAndGet(read);
+                report(0, read);
+            }
+            if (written != end - start + 1) {
+                throw new IOException("Range " + start + "-" + end + " of "
+                        + mKey + " came back short");
+            }
+            synchronized (this) {
+                mDone[range] = true;
+            }
+            written = 0;
+            digestFinished();
+        } finally {
+            // a range only counts once all of it is on disk
+            if (written > 0) {
+                mBytesDone.addAndGet(-written);
+                report(ProgressEvent.RESET_EVENT_CODE, written);
+            }
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "", e);
+                }
+            }
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
+    private synchronized boolean isDone(int range) {
+        return mDone[range];
+    }
+
+    /*
+     * Hashes what was just written at offset into range, if that range is
+     * the one at the head. The other fetchers return without taking the lock.
+     */
+    private void digestWritten(int range, long offset, byte[] buffer, int count)
+            throws IOException {
+        if (range != mDigested || !isMd5(mETag)) {
+            return;
+        }
+        synchronized (mDigestLock) {
+            if (range != mDigested || !ensureDigest()) {
+                return;
+            }
+            if (mHeadFed < offset) {
+                // written before it became the head
+                digestFromFile(range, mHeadFed, offset);
+            }
+            // a range fetched again after a failed run skips what it had
+            long skip = mHeadFed - offset;
+            if (skip < count) {
+                mDigest.update(buffer, (int) skip, (int) (count - skip));
+                mHeadFed = offset + count;
+            }
+        }
+    }
+
+    /* Hashes the ranges that now directly follow the ones already hashed */
+    private void digestFinished() throws IOException {
+        if (!isMd5(mETag)) {
+            return;
+        }
+        synchronized (mDigestLock) {
+            if (!ensureDigest()) {
+                return;
+            }
+            while (mDigested < mDone.length && isDone(mDigested)) {
+                // nothing left to read for a range that was the head throughout
+                digestFromFile(mDigested, mHeadFed, rangeLength(mDigested));
+                mHeadFed = 0;
+                mDigested++;
+            }
+        }
+    }
+
+    /* call with mDigestLock held, false if there is no MD5 to check with */
+    private boolean ensureDigest() {
+        if (mDigest == null) {
+            try {
+                mDigest = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                // we just won't check, the ETag constraint still holds
+                Log.e(TAG, "", e);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* call with mDigestLock held, the bytes were only just written */
+    private void digestFromFile(int range, long from, long to)
+            throws IOException {
+        if (from >= to) {
+            return;
+        }
+        RandomAccessFile in = new RandomAccessFile(mFile, "r");
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long remaining = to - from;
+            in.seek(range * mPartSize + from);
+            while (remaining > 0) {
+                int read = in.read(buffer, 0,
+                        (int) Math.min(buffer.length, remaining));
+                if (read == -1) {
+                    throw new IOException(mFile + " is shorter than " + mKey);
+                }
+                mDigest.update(buffer, 0, read);
+                remaining -= read;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private long rangeLength(int range) {
+        long start = range * mPartSize;
+        return Math.min(start + mPartSize, mLength) - start;
+    }
+
+    /* Compares the hash of the whole file with the ETag, if we can */
+    private void verify() throws IOException {
+        synchronized (mDigestLock) {
+            if (mDigest == null || mDigested < mDone.length) {
+                return;
+            }
+            String md5 = BinaryUtils.toHex(mDigest.digest());
+            if (!md5.equalsIgnoreCase(mETag)) {
+                // start from scratch next time
+                mDigest = null;
+                mDigested = 0;
+                mHeadFed = 0;
+                synchronized (this) {
+                    for (int i = 0; i < mDone.length; i++) {
+                        mDone[i] = false;
+                    }
+                }
+                mBytesDone.set(0);
+                throw new IOException("MD5 of " + mKey + " doesn't match its ETag");
+            }
+        }
+    }
+
+    /* multipart ETags look like "<md5 of the part md5s>-<number of parts>" */
+    private static boolean isMd5(String eTag) {
+        return eTag != null && eTag.length() == 32 && eTag.indexOf('-') == -1;
+    }
+
+    private void checkAborted() throws IOException {
+        if (mAborted) {
+            throw new IOException("Download of " + mKey + " was aborted");
+        }
+    }
+
+    /* Stops all the ranges, run() then throws */
+    public void abort() {
+        mAborted = true;
+    }
+
+    /*
+     * Lets run() fetch the missing ranges after an abort(). Call it before
+     * the new attempt can be paused again, or that pause is lost.
+     */
+    public void clearAbort() {
+        mAborted = false;
+    }
+
+    public long getBytesTransferred() {
+        return mBytesDone.get();
+    }
+
+    public void setProgressListener(ProgressListener listener) {
+        mProgressListener = listener;
+    }
+
+    /* code is 0 for bytes that arrived, RESET_EVENT_CODE for ones taken back */
+    private void report(int code, long count) {
+        ProgressListener listener = mProgressListener;
+        if (listener != null) {
+            listener.progressChanged(new ProgressEvent(code, count));
+        }
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright 2010-2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.android.demo.notepad3;
+
+import android.util.Log;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.ProgressEvent;
+import com.amazonaws.services.s3.model.ProgressListener;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.util.BinaryUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Uploads a stream we have to stage on disk first, without waiting for the
+ * whole copy to finish. As soon as a part's worth of bytes has been written
+ * to the staging file that part is sent from the file while the copy carries
+ * on, so reading the source and sending overlap. Sources smaller than one
+ * part are sent with a single PUT once copied.
+ *
+ * The MD5 of every part (and of the whole thing for a single PUT) is worked
+ * out in the copy loop and sent along as Content-MD5, so the SDK doesn't have
+ * to go over the bytes again to get it and S3 still checks what it got.
+ *
+ * run() blocks until the upload is done, so call it off the UI thread.
+ */
+public class PipelinedUpload {
+    private static final String TAG = "PipelinedUpload";
+    private static final int BUFFER_SIZE = 8192;
+
+    // the per upload limit is enforced by mPartSlots, see submitPart
+    private static ExecutorService sPartExecutor;
+
+    private final AmazonS3 mClient;
+    private final String mBucket;
+    private final String mKey;
+    private final InputStream mSource;
+    private final File mFile;
+    private final ObjectMetadata mMetadata;
+    private final long mPartSize;
+    private final Semaphore mPartSlots;
+    private final List<Future<PartETag>> mParts = new ArrayList<Future<PartETag>>();
+    private final AtomicLong mBytesSent = new AtomicLong();
+    private volatile long mBytesRead;
+    private volatile boolean mReadComplete;
+    private volatile boolean mAborted;
+    // only gets the byte counts and resets, not the start/complete events
+    private volatile ProgressListener mProgressListener;
+
+    public PipelinedUpload(AmazonS3 client, String bucket, String key,
+            InputStream source, File stagingFile, ObjectMetadata metadata,
+            TransferTuning tuning) {
+        mClient = client;
+        mBucket = bucket;
+        mKey = key;
+        mSource = source;
+        mFile = stagingFile;
+        mMetadata = metadata;
+        mPartSize = tuning.getUploadPartSize();
+        mPartSlots = new Semaphore(tuning.getUploadConcurrency());
+    }
+
+    private static synchronized ExecutorService getPartExecutor() {
+        if (sPartExecutor == null) {
+            sPartExecutor = Executors.newCachedThreadPool();
+        }
+        return sPartExecutor;
+    }
+
+    public void run() throws IOException, InterruptedException {
+        String uploadId = null;
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(mFile, false);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            MessageDigest objectDigest = newMd5();
+            MessageDigest partDigest = newMd5();
+            long partStart = 0;
+            long written = 0;
+            int partNumber = 1;
+            int read;
+            while ((read = mSource.read(buffer)) != -1) {
+                checkAborted();
+                out.write(buffer, 0, read);
+                objectDigest.update(buffer, 0, read);
+                partDigest.update(buffer, 0, read);
+                written += read;
+                mBytesRead = written;
+                if (written - partStart >= mPartSize) {
+                    if (uploadId == null) {
+                        uploadId = mClient.initiateMultipartUpload(
+                                new InitiateMultipartUploadRequest(mBucket,
+                                        mKey, mMetadata)).getUploadId();
+                    }
+                    submitPart(uploadId, partNumber++, partStart,
+                            written - partStart, partDigest.digest(), false);
+                    partStart = written;
+                }
+            }
+            out.close();
+            out = null;
+            mReadComplete = true;
+            checkAborted();
+
+            if (uploadId == null) {
+                // it all fit in one part
+                mMetadata.setContentLength(written);
+                mMetadata.setContentMD5(BinaryUtils.toBase64(
+                        objectDigest.digest()));
+                PutObjectRequest request = new PutObjectRequest(mBucket, mKey,
+                        mFile).withMetadata(mMetadata);
+                request.setProgressListener(new PartProgressListener());
+                mClient.putObject(request);
+                return;
+            }
+
+            if (written > partStart) {
+                submitPart(uploadId, partNumber, partStart,
+                        written - partStart, partDigest.digest(), true);
+            }
+            List<PartETag> partETags = new ArrayList<PartETag>(mParts.size());
+            for (Future<PartETag> part : mParts) {
+                partETags.add(part.get());
+            }
+            checkAborted();
+            mClient.completeMultipartUpload(new CompleteMultipartUploadRequest(
+                    mBucket, mKey, uploadId, partETags));
+            uploadId = null;
+        } catch (ExecutionException e) {
+            // IOException(Throwable) is not available on API 8
+            IOException ioe = new IOException("Upload of part failed");
+            ioe.initCause(e.getCause());
+            throw ioe;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "", e);
+                }
+            }
+            try {
+                mSource.close();
+            } catch (IOException e) {
+                Log.e(TAG, "", e);
+            }
+            if (uploadId != null) {
+                // something went wrong, don't leave the parts behind
+                for (Future<PartETag> part : mParts) {
+                    part.cancel(true);
+                }
+                try {
+                    mClient.abortMultipartUpload(new AbortMultipartUploadRequest(
+                            mBucket, mKey, uploadId));
+                } catch (Exception e) {
+                    Log.e(TAG, "", e);
+                }
+            }
+        }
+    }
+
+    /*
+     * Waits for a free slot first, so the copy doesn't run ahead of the
+     * parts and queue up tasks that would only sit on a pool thread.
+     */
+    private void submitPart(String uploadId, int partNumber, long offset,
+            long size, byte[] md5, boolean lastPart)
+            throws InterruptedException {
+        final UploadPartRequest request = new UploadPartRequest()
+                .withBucketName(mBucket)
+                .withKey(mKey)
+                .withUploadId(uploadId)
+                .withPartNumber(partNumber)
+                .withFile(mFile)
+                .withFileOffset(offset)
+                .withPartSize(size)
+                .withMD5Digest(BinaryUtils.toBase64(md5))
+                .withLastPart(lastPart);
+        request.setProgressListener(new PartProgressListener());
+        mPartSlots.acquire();
+        try {
+            mParts.add(getPartExecutor().submit(new Callable<PartETag>() {
+                @Override
+                public PartETag call() throws Exception {
+                    try {
+                        checkAborted();
+                        return mClient.uploadPart(request).getPartETag();
+                    } finally {
+                        mPartSlots.release();
+                    }
+                }
+            }));
+        } catch (RuntimeException e) {
+            // never got to run, so it can't give the slot back itself
+            mPartSlots.release();
+            throw e;
+        }
+    }
+
+    private static MessageDigest newMd5() throws IOException {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            IOException ioe = new IOException("MD5 is not available");
+            ioe.initCause(e);
+            throw ioe;
+        }
+    }
+
+    private void checkAborted() throws IOException {
+        if (mAborted) {
+            throw new IOException("Upload of " + mKey + " was aborted");
+        }
+    }
+
+    public void setProgressListener(ProgressListener listener) {
+        mProgressListener = listener;
+    }
+
+    /* Stops the copy and the parts, run() then throws */
+    public void abort() {
+        mAborted = true;
+    }
+
+    /* whether the whole source made it into the staging file */
+    public boolean isReadComplete() {
+        return mReadComplete;
+    }
+
+    public long getBytesTransferred() {
+        return mBytesSent.get();
+    }
+
+    /*
+     * We only know the total once the source has been read, until then this
+     * is relative to what has been copied so far
+     */
+    public int getPercentTransferred() {
+        long total = mBytesRead;
+        if (total == 0) {
+            return 0;
+        }
+        int percent = (int) (mBytesSent.get() * 100 / total);
+        return mReadComplete ? Math.min(percent, 100) : Math.min(percent, 99);
+    }
+
+    private class PartProgressListener implements ProgressListener {
+        @Override
+        public void progressChanged(ProgressEvent event) {
+            if (event.getEventCode() == ProgressEvent.RESET_EVENT_CODE) {
+                // the request is being retried, take back what it sent
+                mBytesSent.addAndGet(-event.getBytesTransferred());
+            } else if (event.getEventCode() == 0) {
+                mBytesSent.addAndGet(event.getBytesTransferred());
+            } else {
+                return;
+            }
+            ProgressListener listener = mProgressListener;
+            if (listener != null) {
+                listener.progressChanged(event);
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2010-2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.android.demo.notepad3;
+
+import android.util.Log;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ProgressEvent;
+import com.amazonaws.services.s3.model.ProgressListener;
+import com.amazonaws.services.s3.model.S3Object;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/*
+ * Downloads an object in one GET, writing it to the file as it comes in. The
+ * SDK checks the bytes against the ETag while we read them, so there is no
+ * second pass over the file to verify it.
+ *
+ * Objects stored with Content-Encoding: gzip are decompressed on the way to
+ * the file so what ends up on disk is what was uploaded. The check is on the
+ * compressed bytes then.
+ *
+ * run() blocks until the download is done, so call it off the UI thread.
+ * Once aborted it stays aborted, make a new one to try again.
+ */
+public class StreamDownload {
+    private static final String TAG = "StreamDownload";
+    private static final int BUFFER_SIZE = 8192;
+
+    private final AmazonS3 mClient;
+    private final String mBucket;
+    private final String mKey;
+    private final File mFile;
+    private final boolean mGzipped;
+    private volatile boolean mAborted;
+    // only gets the compressed byte counts, not the start/complete events
+    private volatile ProgressListener mProgressListener;
+
+    public StreamDownload(AmazonS3 client, String bucket, String key, File file,
+            boolean gzipped) {
+        mClient = client;
+        mBucket = bucket;
+        mKey = key;
+        mFile = file;
+        mGzipped = gzipped;
+    }
+
+    /* one go per object, an abort() from before we got here still counts */
+    public void run() throws IOException {
+        checkAborted();
+        S3Object object = mClient.getObject(mBucket, mKey);
+        InputStream in = null;
+        FileOutputStream out = null;
+        try {
+            in = new CountingInputStream(object.getObjectContent());
+            if (mGzipped) {
+                in = new GZIPInputStream(in, BUFFER_SIZE);
+            }
+            out = new FileOutputStream(mFile, false);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                checkAborted();
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "", e);
+                }
+            } else {
+                object.getObjectContent().close();
+            }
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
+    private void checkAborted() throws IOException {
+        if (mAborted) {
+            throw new IOException("Download of " + mKey + " was aborted");
+        }
+    }
+
+    /* Stops the download, run() then throws */
+    public void abort() {
+        mAborted = true;
+    }
+
+    public void setProgressListener(ProgressListener listener) {
+        mProgressListener = listener;
+    }
+
+    private void reportBytes(int count) {
+        ProgressListener listener = mProgressListener;
+        if (listener != null) {
+            listener.progressChanged(new ProgressEvent(count));
+        }
+    }
+
+    /* reports the bytes as stored, they add up to the Content-Length */
+    private class CountingInputStream extends FilterInputStream {
+        private CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                reportBytes(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                reportBytes(read);
+            }
+            return read;
+        }
+    }
+}
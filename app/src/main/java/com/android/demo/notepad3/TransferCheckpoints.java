@@ -0,0 +1,182 @@
+/*
+ * Copyright 2010-2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.android.demo.notepad3;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.amazonaws.mobileconnectors.s3.transfermanager.PersistableTransfer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/*
+ * Keeps the pause tokens of running transfers on disk, so a transfer the
+ * process died in the middle of can be resumed by the next NetworkService
+ * instead of starting over. The token is all the TransferManager needs: S3
+ * remembers which parts of an upload it has, and a download carries on from
+ * however much of the file is already there.
+ *
+ * Each checkpoint is its own small file, written to a temporary file and
+ * renamed so a checkpoint is never half written.
+ */
+public class TransferCheckpoints {
+    private static final String TAG = "TransferCheckpoints";
+    private static final String DIR_NAME = "checkpoints";
+    private static final int VERSION = 1;
+
+    public static final int KIND_UPLOAD = 1;
+    public static final int KIND_DOWNLOAD = 2;
+
+    private static TransferCheckpoints sCheckpoints;
+
+    private final File mDir;
+
+    /* What we need to rebuild the TransferModel around a pause token */
+    public static class Checkpoint {
+        private final String id;
+        private final int kind;
+        private final String source;
+        private final String file;
+        private final String token;
+
+        private Checkpoint(String id, int kind, String source, String file,
+                String token) {
+            this.id = id;
+            this.kind = kind;
+            this.source = source;
+            this.file = file;
+            this.token = token;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public int getKind() {
+            return kind;
+        }
+
+        /* the Uri an upload came from, or the key a download is for */
+        public String getSource() {
+            return source;
+        }
+
+        /* the local file the transfer reads or writes, may be null */
+        public String getFile() {
+            return file;
+        }
+
+        public <T extends PersistableTransfer> T getToken() {
+            return PersistableTransfer.<T> deserializeFrom(token);
+        }
+    }
+
+    public static synchronized TransferCheckpoints get(Context context) {
+        if (sCheckpoints == null) {
+            sCheckpoints = new TransferCheckpoints(
+                    context.getApplicationContext());
+        }
+        return sCheckpoints;
+    }
+
+    private TransferCheckpoints(Context context) {
+        mDir = new File(context.getFilesDir(), DIR_NAME);
+    }
+
+    /*
+     * Saves a checkpoint, replacing the one with the given id if there is
+     * one. Returns the id to use from now on.
+     */
+    public synchronized String save(String id, int kind, String source,
+            String file, PersistableTransfer token) throws IOException {
+        if (id == null) {
+            id = UUID.randomUUID().toString();
+        }
+        mDir.mkdirs();
+        File tmp = new File(mDir, id + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeInt(VERSION);
+            data.writeInt(kind);
+            data.writeUTF(source);
+            data.writeUTF(file == null ? "" : file);
+            data.writeUTF(token.serialize());
+            data.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(new File(mDir, id))) {
+            tmp.delete();
+            throw new IOException("Could not save checkpoint " + id);
+        }
+        return id;
+    }
+
+    public synchronized void delete(String id) {
+        new File(mDir, id).delete();
+    }
+
+    /* Every checkpoint we have, unreadable ones are thrown away */
+    public synchronized List<Checkpoint> loadAll() {
+        List<Checkpoint> checkpoints = new ArrayList<Checkpoint>();
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return checkpoints;
+        }
+        for (File file : files) {
+            if (file.getName().endsWith(".tmp")) {
+                // we died before the rename, the old one (if any) still holds
+                file.delete();
+                continue;
+            }
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new FileInputStream(file));
+                if (in.readInt() != VERSION) {
+                    throw new IOException("Unknown checkpoint version");
+                }
+                int kind = in.readInt();
+                String source = in.readUTF();
+                String local = in.readUTF();
+                String token = in.readUTF();
+                checkpoints.add(new Checkpoint(file.getName(), kind, source,
+                        local.length() == 0 ? null : local, token));
+            } catch (IOException e) {
+                Log.e(TAG, "", e);
+                file.delete();
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        Log.e(TAG, "", e);
+                    }
+                }
+            }
+        }
+        return checkpoints;
+    }
+}
@@ -19,6 +19,8 @@ import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
 
+import java.io.IOException;
+
 
 /*
  * This class is a bridge to the NetworkService, making it easy to have the service
@@ -26,6 +28,8 @@ import android.net.Uri;
  * missing parameters in the Intent and that kind of thing
  */
 public class TransferController {
+    private static final String NOTE_CONTENT_TYPE = "text/plain";
+
     public static void abort(Context context, TransferModel model) {
         Intent intent = makeIdIntent(context, model.getId());
         intent.setAction(NetworkService.ACTION_ABORT);
@@ -39,6 +43,30 @@ public class TransferController {
         context.startService(intent);
     }
 
+    /*
+     * Uploads a note. The note is safely in the UploadJournal once this
+     * returns, even if the upload itself has to wait for the network or for
+     * the app to be started again. Returns the id of the journal job, see
+     * UploadModel.getJobId().
+     */
+    public static String putNote(Context context, String fileName, byte[] body)
+            throws IOException {
+        UploadJournal.Job job = UploadJournal.get(context).stage(fileName,
+                body, NOTE_CONTENT_TYPE);
+        Intent intent = new Intent(context, NetworkService.class);
+        intent.setAction(NetworkService.ACTION_PUT_NOTE);
+        intent.putExtra(NetworkService.JOB_ID_EXTRA, job.getId());
+        context.startService(intent);
+        return job.getId();
+    }
+
+    /* Starts the service so it uploads whatever an earlier run left behind */
+    public static void replayPending(Context context) {
+        Intent intent = new Intent(context, NetworkService.class);
+        intent.setAction(NetworkService.ACTION_REPLAY);
+        context.startService(intent);
+    }
+
     public static void download(Context context, String[] keys) {
         Intent intent = new Intent(context, NetworkService.class);
         intent.setAction(Intent.ACTION_GET_CONTENT);
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2010-2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.android.demo.notepad3;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * Tells the screens when transfers change, so they don't have to poll. The
+ * models post here whenever their status changes or bytes move, from
+ * whatever thread that happens on. Everything that changed within a frame is
+ * handed to the listeners in one go on the UI thread, so a busy transfer
+ * costs at most one update per frame and nothing at all when nobody listens
+ * or nothing moves.
+ */
+public class TransferEvents {
+    private static final long FRAME_MILLIS = 16;
+
+    public interface Listener {
+        /* called on the UI thread with every model that changed */
+        void onTransfersChanged(List<TransferModel> changed);
+    }
+
+    private static final CopyOnWriteArrayList<Listener> sListeners =
+            new CopyOnWriteArrayList<Listener>();
+    // keyed by id, a model that changes ten times a frame is listed once
+    private static final ConcurrentHashMap<Integer, TransferModel> sChanged =
+            new ConcurrentHashMap<Integer, TransferModel>();
+    private static final AtomicBoolean sScheduled = new AtomicBoolean();
+    private static Handler sHandler;
+    private static volatile long sLastDispatch;
+
+    private static final Runnable sDispatch = new Runnable() {
+        @Override
+        public void run() {
+            sLastDispatch = SystemClock.uptimeMillis();
+            // anything posted from here on needs another dispatch
+            sScheduled.set(false);
+            List<TransferModel> changed = new ArrayList<TransferModel>(
+                    sChanged.values());
+            for (TransferModel model : changed) {
+                sChanged.remove(model.getId());
+            }
+            if (changed.isEmpty()) {
+                return;
+            }
+            for (Listener listener : sListeners) {
+                listener.onTransfersChanged(changed);
+            }
+        }
+    };
+
+    /* Call from the UI thread, remember to unregister */
+    public static void register(Listener listener) {
+        sListeners.add(listener);
+    }
+
+    public static void unregister(Listener listener) {
+        sListeners.remove(listener);
+        if (sListeners.isEmpty()) {
+            sChanged.clear();
+        }
+    }
+
+    /* Called by the models, from any thread */
+    static void post(TransferModel model) {
+        if (sListeners.isEmpty()) {
+            return;
+        }
+        sChanged.put(model.getId(), model);
+        if (sScheduled.compareAndSet(false, true)) {
+            Handler handler = getHandler();
+            long wait = sLastDispatch + FRAME_MILLIS
+                    - SystemClock.uptimeMillis();
+            handler.postDelayed(sDispatch, Math.max(0, wait));
+        }
+    }
+
+    private static synchronized Handler getHandler() {
+        if (sHandler == null) {
+            sHandler = new Handler(Looper.getMainLooper());
+        }
+        return sHandler;
+    }
+}
@@ -17,63 +17,113 @@ package com.android.demo.notepad3;
 
 import android.content.Context;
 import android.net.Uri;
+import android.util.Log;
 
+import com.amazonaws.mobileconnectors.s3.transfermanager.PersistableTransfer;
 import com.amazonaws.mobileconnectors.s3.transfermanager.Transfer;
 import com.amazonaws.mobileconnectors.s3.transfermanager.TransferManager;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.LinkedHashMap;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /*
  * The TransferModel is a class that encapsulates a transfer. It handles the 
  * interaction with the underlying TransferManager and Upload/Download classes
+ *
+ * The registry of all models is written from the service, the SDK's threads
+ * and the UI. Lookups go through a concurrent map and the UI reads an
+ * immutable snapshot that is swapped out on every change, so reading never
+ * takes a lock. Models that completed or were canceled are evicted a while
+ * after they finished and let go of their Context and transfer then.
+ *
+ * Bytes moved are added to a TransferProgress counter, getProgress() reads
+ * it instead of asking the transfer each time.
  */
 public abstract class TransferModel {
 	private static final String TAG = "TransferModel";
 
 	public static enum Status {
-		IN_PROGRESS, PAUSED, CANCELED, COMPLETED
+		QUEUED, IN_PROGRESS, PAUSED, CANCELED, COMPLETED
 	};
 
+	// how long finished models stay around for the screens to see them
+	private static final long RETENTION_MILLIS = 60 * 1000;
+
 	// all TransferModels have associated id which is their key to sModels
-	private static LinkedHashMap<Integer, TransferModel> sModels = new LinkedHashMap<Integer, TransferModel>();
-	private static int sNextId = 1;
+	private static final ConcurrentHashMap<Integer, TransferModel> sModels = new ConcurrentHashMap<Integer, TransferModel>();
+	private static final AtomicInteger sNextId = new AtomicInteger(1);
+	// in the order they were added, replaced as a whole under sSnapshotLock
+	private static volatile List<TransferModel> sSnapshot = Collections.emptyList();
+	private static final Object sSnapshotLock = new Object();
+	private static ScheduledExecutorService sEvictor;
 
 	private String mFileName;
-	private Context mContext;
+	private volatile Context mContext;
 	private Uri mUri;
 	private int mId;
-	private TransferManager mManager;
+	private volatile TransferManager mManager;
+	private TransferTuning mTuning;
+	private volatile Status mStatus = Status.QUEUED;
+	private TransferScheduler mScheduler;
+	// set once a pause token of ours is on disk, see TransferCheckpoints
+	private volatile String mCheckpointId;
+	private final TransferProgress.Counter mCounter = new TransferProgress.Counter();
 
 	public static TransferModel getTransferModel(int id) {
 		return sModels.get(id);
 	}
 
+	/* an unmodifiable snapshot, it doesn't change when the registry does */
 	public static List<TransferModel> getAllTransfers() {
+		return sSnapshot;
+	}
 
-		List<TransferModel> transferModels = new ArrayList<TransferModel>();
-		TransferModel[] tmpModels = new TransferModel[sModels.size()];
-		TransferModel[] modelss = sModels.values().toArray(tmpModels);
-		for (int i = 0; i < modelss.length; i++) {
-			transferModels.add(modelss[i]);
+	public static void removeTransferModel(int id) {
+		TransferModel model = sModels.remove(id);
+		if (model != null) {
+			synchronized (sSnapshotLock) {
+				List<TransferModel> snapshot = new ArrayList<TransferModel>(sSnapshot);
+				snapshot.remove(model);
+				sSnapshot = Collections.unmodifiableList(snapshot);
+			}
 		}
-		return transferModels;
 	}
 
-	public static void removeTransferModel(int id) {
+	private static void addTransferModel(TransferModel model) {
+		sModels.put(model.mId, model);
+		synchronized (sSnapshotLock) {
+			List<TransferModel> snapshot = new ArrayList<TransferModel>(sSnapshot);
+			snapshot.add(model);
+			sSnapshot = Collections.unmodifiableList(snapshot);
+		}
+	}
 
-		sModels.remove(id);
+	private static synchronized ScheduledExecutorService getEvictor() {
+		if (sEvictor == null) {
+			sEvictor = Executors.newSingleThreadScheduledExecutor();
+		}
+		return sEvictor;
 	}
 
-	public TransferModel(Context context, Uri uri, TransferManager manager) {
-		mContext = context;
+	public TransferModel(Context context, Uri uri, TransferManager manager,
+			TransferTuning tuning) {
+		// the service or activity that made us may go away long before we do
+		mContext = context.getApplicationContext();
 		mUri = uri;
 		mManager = manager;
+		mTuning = tuning;
 		String uriString = uri.toString();
 		mFileName = Util.getFileName(uriString);
-		mId = sNextId++;
-		sModels.put(mId, this);
+		mId = sNextId.getAndIncrement();
+		addTransferModel(this);
+		TransferEvents.post(this);
 	}
 
 	public String getFileName() {
@@ -85,6 +135,11 @@ public abstract class TransferModel {
 	}
 
 	public int getProgress() {
+		int percent = mCounter.snapshot().percent;
+		if (percent >= 0) {
+			return percent;
+		}
+		// we don't know the total, the transfer might
 		Transfer transfer = getTransfer();
 		if (transfer != null) {
 			int ret = (int) transfer.getProgress().getPercentTransferred();
@@ -93,13 +148,23 @@ public abstract class TransferModel {
 		return 0;
 	}
 
+	/* bytes, rate and time left, see TransferProgress */
+	public TransferProgress.Snapshot getProgressSnapshot() {
+		return mCounter.snapshot();
+	}
+
 	public Uri getUri() {
 		return mUri;
 	}
 
+	public Status getStatus() {
+		return mStatus;
+	}
+
 	public abstract void abort();
 
-	public abstract Status getStatus();
+	/* starts the transfer, called by the TransferScheduler */
+	public abstract void start();
 
 	public abstract Transfer getTransfer();
 
@@ -114,4 +179,107 @@ public abstract class TransferModel {
 	protected TransferManager getTransferManager() {
 		return mManager;
 	}
+
+	protected TransferTuning getTuning() {
+		return mTuning;
+	}
+
+	/*
+	 * Saves a pause token so the transfer can be picked up again if the
+	 * process dies. file is the local file the transfer reads or writes.
+	 */
+	protected void saveCheckpoint(int kind, String source, String file,
+			PersistableTransfer token) {
+		try {
+			mCheckpointId = TransferCheckpoints.get(mContext).save(
+					mCheckpointId, kind, source, file, token);
+		} catch (IOException e) {
+			Log.e(TAG, "", e);
+		}
+	}
+
+	/* for models rebuilt from a checkpoint */
+	protected void setCheckpointId(String id) {
+		mCheckpointId = id;
+	}
+
+	/*
+	 * Lets the scheduler know when this stops taking up a transfer slot. A
+	 * finished transfer has nothing to resume, so its checkpoint goes too.
+	 */
+	protected void setStatus(Status status) {
+		mStatus = status;
+		if (status == Status.IN_PROGRESS) {
+			TransferProgress.activate(mCounter);
+		} else {
+			TransferProgress.deactivate(mCounter);
+		}
+		String checkpointId = mCheckpointId;
+		if (checkpointId != null
+				&& (status == Status.COMPLETED || status == Status.CANCELED)) {
+			mCheckpointId = null;
+			TransferCheckpoints.get(mContext).delete(checkpointId);
+		}
+		TransferScheduler scheduler = mScheduler;
+		if (scheduler != null && status != Status.IN_PROGRESS) {
+			scheduler.onStatusChanged(this);
+		}
+		TransferEvents.post(this);
+		if (status == Status.COMPLETED || status == Status.CANCELED) {
+			scheduleEviction();
+		}
+	}
+
+	private void scheduleEviction() {
+		getEvictor().schedule(new Runnable() {
+			@Override
+			public void run() {
+				Status status = mStatus;
+				if (status == Status.COMPLETED || status == Status.CANCELED) {
+					removeTransferModel(mId);
+					mContext = null;
+					mManager = null;
+					onEvicted();
+				}
+			}
+		}, RETENTION_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/*
+	 * Called once the model is out of the registry, let go of anything big.
+	 * getContext() returns null from now on.
+	 */
+	protected void onEvicted() {
+	}
+
+	/*
+	 * For the progress listeners, called for every buffer. Negative when a
+	 * retried request takes back what it sent, which the ConcurrencyController
+	 * takes as a sign of congestion. The screens hear about it at
+	 * most every TransferProgress.PUBLISH_INTERVAL_MILLIS.
+	 */
+	protected void notifyProgress(long bytes) {
+		mCounter.add(bytes);
+		if (bytes < 0 && mStatus == Status.IN_PROGRESS) {
+			// not just us being paused or aborted
+			ConcurrencyController.recordRetry();
+		}
+		if (mCounter.shouldPublish()) {
+			TransferEvents.post(this);
+		}
+	}
+
+	/* when the transfer starts over, or carries on from bytes it already has */
+	protected void resetProgress(long bytes) {
+		mCounter.set(bytes);
+	}
+
+	/* bytes that go over the wire, -1 if we don't know */
+	protected void setProgressTotal(long total) {
+		mCounter.setTotal(total);
+	}
+
+	void setScheduler(TransferScheduler scheduler) {
+		mScheduler = scheduler;
+	}
 }
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2010-2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.android.demo.notepad3;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Collects the byte counts of all transfers. The progress listeners fire for
+ * every buffer, so all they do is add to a per transfer atomic counter. The
+ * numbers the UI wants (percent, bytes/sec, time left) are only worked out
+ * when someone asks, and then at most every PUBLISH_INTERVAL_MILLIS, for each
+ * transfer and for all active transfers together.
+ */
+public class TransferProgress {
+    public static final long PUBLISH_INTERVAL_MILLIS = 100;
+    // how much a new rate sample counts against the ones before it
+    private static final double RATE_SMOOTHING = 0.3;
+
+    private static final ConcurrentHashMap<Counter, Boolean> sActive =
+            new ConcurrentHashMap<Counter, Boolean>();
+    private static final Object sTotalLock = new Object();
+    private static Snapshot sTotal = Snapshot.EMPTY;
+    private static long sTotalTime;
+
+    /* Progress at one point in time, unknown values are -1 */
+    public static class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(0, -1, 0);
+
+        public final long bytes;
+        public final long total;
+        public final int percent;
+        public final long bytesPerSecond;
+        public final long etaMillis;
+
+        Snapshot(long bytes, long total, long bytesPerSecond) {
+            this.bytes = bytes;
+            this.total = total;
+            this.bytesPerSecond = bytesPerSecond;
+            if (total > 0) {
+                percent = (int) Math.min(100, bytes * 100 / total);
+            } else {
+                percent = total == 0 ? 100 : -1;
+            }
+            if (total >= 0 && bytesPerSecond > 0) {
+                etaMillis = Math.max(0, total - bytes) * 1000 / bytesPerSecond;
+            } else {
+                etaMillis = -1;
+            }
+        }
+    }
+
+    /* The counter of one transfer, add() is safe to call from any thread */
+    public static class Counter {
+        private final AtomicLong mBytes = new AtomicLong();
+        private final AtomicLong mLastPublish = new AtomicLong();
+        private volatile long mTotal = -1;
+        // only touched in snapshot(), under the counter's lock
+        private Snapshot mSnapshot = Snapshot.EMPTY;
+        private long mSnapshotTime;
+        private long mSnapshotBytes;
+        private double mRate;
+
+        public void add(long bytes) {
+            mBytes.addAndGet(bytes);
+        }
+
+        /* starting over, or carrying on from what a resumed transfer has */
+        public void set(long bytes) {
+            mBytes.set(bytes);
+            synchronized (this) {
+                mSnapshotBytes = bytes;
+                mSnapshotTime = 0;
+                mRate = 0;
+            }
+        }
+
+        public void setTotal(long total) {
+            mTotal = total;
+        }
+
+        public long getBytes() {
+            return mBytes.get();
+        }
+
+        /*
+         * Whether enough time passed since the last time this returned true,
+         * so the listener knows when to tell the screens. Lock free.
+         */
+        public boolean shouldPublish() {
+            long now = SystemClock.uptimeMillis();
+            long last = mLastPublish.get();
+            return now - last >= PUBLISH_INTERVAL_MILLIS
+                    && mLastPublish.compareAndSet(last, now);
+        }
+
+        /* at most PUBLISH_INTERVAL_MILLIS old */
+        public synchronized Snapshot snapshot() {
+            long now = SystemClock.uptimeMillis();
+            long bytes = mBytes.get();
+            if (mSnapshotTime == 0) {
+                mSnapshotTime = now;
+                mSnapshotBytes = bytes;
+            } else if (now - mSnapshotTime >= PUBLISH_INTERVAL_MILLIS) {
+                double sample = (bytes - mSnapshotBytes) * 1000.0
+                        / (now - mSnapshotTime);
+                mRate = mRate == 0 ? sample
+                        : RATE_SMOOTHING * sample + (1 - RATE_SMOOTHING) * mRate;
+                mSnapshotTime = now;
+                mSnapshotBytes = bytes;
+            } else if (mSnapshot.bytes == bytes && mSnapshot.total == mTotal) {
+                return mSnapshot;
+            }
+            mSnapshot = new Snapshot(bytes, mTotal, (long) Math.max(0, mRate));
+            return mSnapshot;
+        }
+    }
+
+    /* counts towards the total from now on */
+    static void activate(Counter counter) {
+        sActive.put(counter, Boolean.TRUE);
+    }
+
+    static void deactivate(Counter counter) {
+        sActive.remove(counter);
+    }
+
+    /* all active transfers together, at most PUBLISH_INTERVAL_MILLIS old */
+    public static Snapshot getTotal() {
+        if (sActive.isEmpty()) {
+            // so the last transfer finishing doesn't leave its rate behind
+            return Snapshot.EMPTY;
+        }
+        synchronized (sTotalLock) {
+            long now = SystemClock.uptimeMillis();
+            if (sTotalTime != 0 && now - sTotalTime < PUBLISH_INTERVAL_MILLIS) {
+                return sTotal;
+            }
+            long bytes = 0;
+            long total = 0;
+            long rate = 0;
+            for (Counter counter : sActive.keySet()) {
+                Snapshot snapshot = counter.snapshot();
+                bytes += snapshot.bytes;
+                rate += snapshot.bytesPerSecond;
+                if (total >= 0) {
+                    // one unknown total makes the sum unknown
+                    total = snapshot.total < 0 ? -1 : total + snapshot.total;
+                }
+            }
+            sTotal = new Snapshot(bytes, total, rate);
+            sTotalTime = now;
+            return sTotal;
+        }
+    }
+}
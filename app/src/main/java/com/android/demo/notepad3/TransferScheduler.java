@@ -0,0 +1,202 @@
+/*
+ * Copyright 2010-2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.android.demo.notepad3;
+
+import com.android.demo.notepad3.TransferModel.Status;
+
+import java.util.HashSet;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+
+/*
+ * Limits how many transfers run on the TransferManager at once. Everything
+ * else waits in the QUEUED state. Uploads and downloads have their own queue,
+ * ordered by priority and then first come first served, and we alternate
+ * between the two queues when a slot frees up so a big batch of downloads
+ * can't starve a note the user just saved (or the other way around).
+ *
+ * A transfer gives up its slot as soon as it is no longer IN_PROGRESS, which
+ * includes being paused. Resuming queues it again.
+ */
+public class TransferScheduler {
+    public static final int PRIORITY_LOW = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_HIGH = 2;
+
+    public interface OnIdleListener {
+        /* nothing is running or queued anymore */
+        void onIdle();
+    }
+
+    private final PriorityQueue<Entry> mUploads = new PriorityQueue<Entry>();
+    private final PriorityQueue<Entry> mDownloads = new PriorityQueue<Entry>();
+    private final HashSet<TransferModel> mRunning = new HashSet<TransferModel>();
+    // transfers are started here since starting an upload may copy a file
+    private final Executor mExecutor;
+    private int mMaxConcurrent;
+    private long mNextSequence;
+    // transfers started so far, see ConcurrencyController
+    private long mStartedCount;
+    private boolean mLastStartedUpload;
+    private OnIdleListener mOnIdleListener;
+
+    private static class Entry implements Comparable<Entry> {
+        private final TransferModel model;
+        private final int priority;
+        private final long sequence;
+
+        private Entry(TransferModel model, int priority, long sequence) {
+            this.model = model;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            if (priority != other.priority) {
+                return priority > other.priority ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1
+                    : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    public TransferScheduler(int maxConcurrent, Executor executor) {
+        mMaxConcurrent = maxConcurrent;
+        mExecutor = executor;
+    }
+
+    public synchronized int getMaxConcurrent() {
+        return mMaxConcurrent;
+    }
+
+    public void setMaxConcurrent(int maxConcurrent) {
+        synchronized (this) {
+            mMaxConcurrent = Math.max(1, maxConcurrent);
+        }
+        promote();
+    }
+
+    public synchronized void setOnIdleListener(OnIdleListener listener) {
+        mOnIdleListener = listener;
+    }
+
+    public synchronized boolean isIdle() {
+        return mRunning.isEmpty() && mUploads.isEmpty() && mDownloads.isEmpty();
+    }
+
+    public synchronized int getRunningCount() {
+        return mRunning.size();
+    }
+
+    public synchronized long getStartedCount() {
+        return mStartedCount;
+    }
+
+    public synchronized int getQueuedCount() {
+        return mUploads.size() + mDownloads.size();
+    }
+
+    /* Queues a new transfer, or a paused one that should be resumed */
+    public void enqueue(TransferModel model, int priority) {
+        synchronized (this) {
+            model.setScheduler(this);
+            Entry entry = new Entry(model, priority, mNextSequence++);
+            if (model instanceof UploadModel) {
+                mUploads.add(entry);
+            } else {
+                mDownloads.add(entry);
+            }
+        }
+        promote();
+    }
+
+    /* Called by the models whenever they leave the IN_PROGRESS state */
+    void onStatusChanged(TransferModel model) {
+        synchronized (this) {
+            if (!mRunning.remove(model)
+                    && model.getStatus() == Status.CANCELED) {
+                // aborted while it was still waiting
+                remove(mUploads, model);
+                remove(mDownloads, model);
+            }
+        }
+        promote();
+    }
+
+    /* Starts as many queued transfers as there are free slots */
+    private void promote() {
+        while (true) {
+            final TransferModel model;
+            OnIdleListener idleListener = null;
+            synchronized (this) {
+                Entry entry = mRunning.size() < mMaxConcurrent ? next() : null;
+                if (entry == null) {
+                    if (isIdle()) {
+                        idleListener = mOnIdleListener;
+                    }
+                    model = null;
+                } else {
+                    model = entry.model;
+                    mRunning.add(model);
+                    mStartedCount++;
+                }
+            }
+            if (model == null) {
+                if (idleListener != null) {
+                    idleListener.onIdle();
+                }
+                return;
+            }
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (model.getStatus() == Status.PAUSED) {
+                        model.resume();
+                    } else if (model.getStatus() == Status.QUEUED) {
+                        model.start();
+                    } else {
+                        // canceled before it got to run
+                        onStatusChanged(model);
+                    }
+                }
+            });
+        }
+    }
+
+    /* Alternates between the queues so neither kind of transfer starves */
+    private Entry next() {
+        PriorityQueue<Entry> first = mLastStartedUpload ? mDownloads : mUploads;
+        PriorityQueue<Entry> second = mLastStartedUpload ? mUploads : mDownloads;
+        Entry entry = first.poll();
+        if (entry == null) {
+            entry = second.poll();
+        }
+        if (entry != null) {
+            mLastStartedUpload = entry.model instanceof UploadModel;
+        }
+        return entry;
+    }
+
+    private static void remove(PriorityQueue<Entry> queue, TransferModel model) {
+        for (Entry entry : queue) {
+            if (entry.model == model) {
+                queue.remove(entry);
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2010-2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.android.demo.notepad3;
+
+import com.amazonaws.mobileconnectors.s3.transfermanager.TransferManagerConfiguration;
+
+/*
+ * Knobs for how big transfers are split up. Uploads at or above the multipart
+ * threshold are sent in parts of the given size, downloads at or above theirs
+ * are fetched as ranged GETs, and each transfer has up to the given number of
+ * parts in flight at once so a single large file can fill the link.
+ *
+ * Notes can also be sent compressed, which is worth it for anything but the
+ * shortest ones since they are plain text.
+ */
+public class TransferTuning {
+    // S3 doesn't allow parts smaller than 5MB except for the last one
+    public static final long MIN_PART_SIZE = 5 * 1024 * 1024;
+
+    private long mUploadPartSize = MIN_PART_SIZE;
+    private long mUploadThreshold = 16 * 1024 * 1024;
+    // changed by the ConcurrencyController while transfers run
+    private volatile int mUploadConcurrency = 3;
+    private long mDownloadPartSize = 4 * 1024 * 1024;
+    private long mDownloadThreshold = 16 * 1024 * 1024;
+    private volatile int mDownloadConcurrency = 4;
+    private boolean mCompressNotes = true;
+
+    public long getUploadPartSize() {
+        return mUploadPartSize;
+    }
+
+    public void setUploadPartSize(long partSize) {
+        mUploadPartSize = Math.max(MIN_PART_SIZE, partSize);
+    }
+
+    public long getUploadThreshold() {
+        return mUploadThreshold;
+    }
+
+    public void setUploadThreshold(long threshold) {
+        mUploadThreshold = threshold;
+    }
+
+    /* parts of one upload that may be sent at the same time, read when it starts */
+    public int getUploadConcurrency() {
+        return mUploadConcurrency;
+    }
+
+    public void setUploadConcurrency(int concurrency) {
+        mUploadConcurrency = Math.max(1, concurrency);
+    }
+
+    public long getDownloadPartSize() {
+        return mDownloadPartSize;
+    }
+
+    public void setDownloadPartSize(long partSize) {
+        mDownloadPartSize = Math.max(1, partSize);
+    }
+
+    public long getDownloadThreshold() {
+        return mDownloadThreshold;
+    }
+
+    public void setDownloadThreshold(long threshold) {
+        mDownloadThreshold = threshold;
+    }
+
+    /* ranges of one download that may be fetched at the same time, read when it starts */
+    public int getDownloadConcurrency() {
+        return mDownloadConcurrency;
+    }
+
+    public void setDownloadConcurrency(int concurrency) {
+        mDownloadConcurrency = Math.max(1, concurrency);
+    }
+
+    /* whether notes are uploaded gzipped, see UploadModel */
+    public boolean isCompressNotes() {
+        return mCompressNotes;
+    }
+
+    public void setCompressNotes(boolean compressNotes) {
+        mCompressNotes = compressNotes;
+    }
+
+    /* the part of this the TransferManager knows how to use */
+    public TransferManagerConfiguration toConfiguration() {
+        TransferManagerConfiguration configuration =
+                new TransferManagerConfiguration();
+        configuration.setMinimumUploadPartSize(mUploadPartSize);
+        configuration.setMultipartUploadThreshold(mUploadThreshold);
+        return configuration;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2010-2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.android.demo.notepad3;
+
+import com.android.demo.notepad3.TransferModel.Status;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Makes sure only the latest version of an object gets uploaded when the same
+ * key is saved several times in a row. Uploads wait a short while before they
+ * are handed to the TransferScheduler, and a newer upload for the same key
+ * aborts the older one, whether it is still waiting, queued or already
+ * running. Aborting can go to the network, so it is done on the executor
+ * we are given rather than on whoever submitted the newer upload.
+ */
+public class UploadCoalescer {
+    private final TransferScheduler mScheduler;
+    private final Executor mControl;
+    private final long mDelayMillis;
+    private final ScheduledExecutorService mTimer =
+            Executors.newSingleThreadScheduledExecutor();
+    // the latest upload for each key that may not have finished yet
+    private final HashMap<String, UploadModel> mLatest =
+            new HashMap<String, UploadModel>();
+    private int mWaiting;
+    private TransferScheduler.OnIdleListener mOnIdleListener;
+
+    public UploadCoalescer(TransferScheduler scheduler, Executor control,
+            long delayMillis) {
+        mScheduler = scheduler;
+        mControl = control;
+        mDelayMillis = delayMillis;
+    }
+
+    public synchronized void setOnIdleListener(
+            TransferScheduler.OnIdleListener listener) {
+        mOnIdleListener = listener;
+    }
+
+    /* whether no upload is waiting to be handed to the scheduler */
+    public synchronized boolean isIdle() {
+        return mWaiting == 0;
+    }
+
+    public void submit(String key, final UploadModel model, final int priority) {
+        final UploadModel previous;
+        synchronized (this) {
+            purgeFinished();
+            previous = mLatest.put(key, model);
+            mWaiting++;
+        }
+        if (previous != null) {
+            // superseded, nobody needs what it was going to send anymore
+            mControl.execute(new Runnable() {
+                @Override
+                public void run() {
+                    previous.abort();
+                }
+            });
+        }
+        mTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                release(model, priority);
+            }
+        }, mDelayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void release(UploadModel model, int priority) {
+        // enqueue before we stop counting it, so there is never a moment
+        // where neither of us knows about it and the service looks idle
+        boolean enqueued = model.getStatus() == Status.QUEUED;
+        if (enqueued) {
+            mScheduler.enqueue(model, priority);
+        }
+        TransferScheduler.OnIdleListener idleListener = null;
+        synchronized (this) {
+            mWaiting--;
+            if (mWaiting == 0) {
+                // the scheduler may have gone idle while we still counted
+                // this one, or never saw it because it was aborted
+                idleListener = mOnIdleListener;
+            }
+        }
+        if (idleListener != null) {
+            idleListener.onIdle();
+        }
+    }
+
+    /* drops the uploads that are done so we don't hold on to their content */
+    private void purgeFinished() {
+        Iterator<UploadModel> it = mLatest.values().iterator();
+        while (it.hasNext()) {
+            Status status = it.next().getStatus();
+            if (status == Status.COMPLETED || status == Status.CANCELED) {
+                it.remove();
+            }
+        }
+    }
+
+    /*
+     * Uploads that are still waiting are handed to the scheduler when their
+     * time is up as usual, only new ones are refused.
+     */
+    public void shutdown() {
+        mTimer.shutdown();
+    }
+}
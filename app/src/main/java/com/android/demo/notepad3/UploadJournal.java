@@ -0,0 +1,317 @@
+/*
+ * Copyright 2010-2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.android.demo.notepad3;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.amazonaws.util.BinaryUtils;
+import com.amazonaws.util.Md5Utils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/*
+ * Write-ahead journal of the notes that still have to be uploaded, so a save
+ * survives the process dying or the device being offline. Saving a note
+ * writes its body to a staged file and appends a record pointing at it, both
+ * synced to disk before stage() returns. A record saying the job is done is
+ * appended once it has been uploaded (or the user gave up on it), and
+ * whatever is left is replayed the next time the NetworkService starts.
+ *
+ * Every record carries a CRC, so a record that was only half written when we
+ * died ends the journal instead of being misread.
+ *
+ * Only the latest save of a note matters. Staging a note supersedes any job
+ * for the same file that is still pending, and replay goes by the same rule,
+ * so an older body can never be uploaded over a newer one.
+ */
+public class UploadJournal {
+    private static final String TAG = "UploadJournal";
+    private static final String JOURNAL_NAME = "upload_journal";
+    private static final String STAGING_DIR = "pending_uploads";
+    private static final byte RECORD_STAGED = 1;
+    private static final byte RECORD_DONE = 2;
+
+    private static UploadJournal sJournal;
+
+    private final File mJournal;
+    private final File mStagingDir;
+    // jobs that were staged but aren't done, in the order they were saved
+    private LinkedHashMap<String, Job> mPending;
+
+    /* A note waiting to be uploaded */
+    public static class Job {
+        private final String id;
+        private final String fileName;
+        private final String contentType;
+        private final File staged;
+        private final String md5;
+
+        private Job(String id, String fileName, String contentType,
+                File staged, String md5) {
+            this.id = id;
+            this.fileName = fileName;
+            this.contentType = contentType;
+            this.staged = staged;
+            this.md5 = md5;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        /* the staged body, checked against the MD5 it was saved with */
+        public byte[] readBody() throws IOException {
+            byte[] body = new byte[(int) staged.length()];
+            DataInputStream in = new DataInputStream(new FileInputStream(staged));
+            try {
+                in.readFully(body);
+            } finally {
+                in.close();
+            }
+            if (!md5.equals(BinaryUtils.toHex(Md5Utils.computeMD5Hash(body)))) {
+                throw new IOException("Staged copy of " + fileName
+                        + " is corrupt");
+            }
+            return body;
+        }
+    }
+
+    public static synchronized UploadJournal get(Context context) {
+        if (sJournal == null) {
+            sJournal = new UploadJournal(context.getApplicationContext());
+        }
+        return sJournal;
+    }
+
+    private UploadJournal(Context context) {
+        mJournal = new File(context.getFilesDir(), JOURNAL_NAME);
+        mStagingDir = new File(context.getFilesDir(), STAGING_DIR);
+    }
+
+    /*
+     * Durably records that this note has to be uploaded. Only does local disk
+     * I/O, once it returns the note will be uploaded sooner or later.
+     */
+    public synchronized Job stage(String fileName, byte[] body,
+            String contentType) throws IOException {
+        loadIfNeeded();
+        mStagingDir.mkdirs();
+        String id = UUID.randomUUID().toString();
+        File staged = new File(mStagingDir, id);
+        FileOutputStream out = new FileOutputStream(staged);
+        try {
+            out.write(body);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        Job job = new Job(id, fileName, contentType, staged,
+                BinaryUtils.toHex(Md5Utils.computeMD5Hash(body)));
+
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(record);
+        data.writeByte(RECORD_STAGED);
+        data.writeUTF(job.id);
+        data.writeUTF(job.fileName);
+        data.writeUTF(job.contentType);
+        data.writeUTF(job.md5);
+        append(record.toByteArray(), true);
+        for (Job older : supersede(mPending, fileName)) {
+            // its model read the body already if it was started
+            older.staged.delete();
+        }
+        mPending.put(id, job);
+        return job;
+    }
+
+    /* Drops the pending jobs for fileName and returns them */
+    private static List<Job> supersede(LinkedHashMap<String, Job> pending,
+            String fileName) {
+        List<Job> superseded = new ArrayList<Job>();
+        Iterator<Job> it = pending.values().iterator();
+        while (it.hasNext()) {
+            Job job = it.next();
+            if (job.fileName.equals(fileName)) {
+                superseded.add(job);
+                it.remove();
+            }
+        }
+        return superseded;
+    }
+
+    public synchronized Job getJob(String id) throws IOException {
+        loadIfNeeded();
+        return mPending.get(id);
+    }
+
+    /* The jobs that still have to be uploaded, oldest first */
+    public synchronized List<Job> getPending() throws IOException {
+        loadIfNeeded();
+        return new ArrayList<Job>(mPending.values());
+    }
+
+    /*
+     * Records that the job needs no more uploading. This isn't synced, if it
+     * gets lost the note is just uploaded again and the dedup check skips it.
+     */
+    public synchronized void complete(Job job) {
+        try {
+            loadIfNeeded();
+            if (mPending.remove(job.id) == null) {
+                return;
+            }
+            if (mPending.isEmpty()) {
+                // nothing left to replay, start a fresh journal
+                mJournal.delete();
+            } else {
+                ByteArrayOutputStream record = new ByteArrayOutputStream();
+                DataOutputStream data = new DataOutputStream(record);
+                data.writeByte(RECORD_DONE);
+                data.writeUTF(job.id);
+                append(record.toByteArray(), false);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "", e);
+        }
+        job.staged.delete();
+    }
+
+    private void append(byte[] record, boolean sync) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        FileOutputStream file = new FileOutputStream(mJournal, true);
+        try {
+            DataOutputStream out = new DataOutputStream(file);
+            out.writeInt(record.length);
+            out.write(record);
+            out.writeLong(crc.getValue());
+            out.flush();
+            if (sync) {
+                file.getFD().sync();
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    private void loadIfNeeded() throws IOException {
+        if (mPending != null) {
+            return;
+        }
+        LinkedHashMap<String, Job> pending = new LinkedHashMap<String, Job>();
+        if (mJournal.exists()) {
+            long valid;
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(mJournal)));
+            try {
+                valid = readRecords(in, pending);
+            } finally {
+                in.close();
+            }
+            if (valid < mJournal.length()) {
+                // cut off the torn record, or what we append next is lost
+                Log.w(TAG, "Dropping a bad record at the end of the journal");
+                RandomAccessFile file = new RandomAccessFile(mJournal, "rw");
+                try {
+                    file.setLength(valid);
+                } finally {
+                    file.close();
+                }
+            }
+        }
+        // staged by a save that died before its record was written
+        File[] staged = mStagingDir.listFiles();
+        if (staged != null) {
+            for (File file : staged) {
+                if (!pending.containsKey(file.getName())) {
+                    file.delete();
+                }
+            }
+        }
+        mPending = pending;
+    }
+
+    /* Reads the good records, returns how many bytes of the journal they use */
+    private long readRecords(DataInputStream in,
+            LinkedHashMap<String, Job> pending) throws IOException {
+        CRC32 crc = new CRC32();
+        long valid = 0;
+        while (true) {
+            byte[] record;
+            try {
+                int length = in.readInt();
+                if (length <= 0 || length > mJournal.length()) {
+                    return valid;
+                }
+                record = new byte[length];
+                in.readFully(record);
+                crc.reset();
+                crc.update(record);
+                if (in.readLong() != crc.getValue()) {
+                    return valid;
+                }
+                valid += 4 + length + 8;
+            } catch (EOFException e) {
+                // the end, or a record we didn't finish writing
+                return valid;
+            }
+
+            DataInputStream data = new DataInputStream(
+                    new ByteArrayInputStream(record));
+            byte type = data.readByte();
+            String id = data.readUTF();
+            if (type == RECORD_STAGED) {
+                String fileName = data.readUTF();
+                String contentType = data.readUTF();
+                String md5 = data.readUTF();
+                File staged = new File(mStagingDir, id);
+                if (staged.exists()) {
+                    // the staged files of these go with the sweep afterwards
+                    supersede(pending, fileName);
+                    pending.put(id, new Job(id, fileName, contentType, staged,
+                            md5));
+                }
+            } else if (type == RECORD_DONE) {
+                pending.remove(id);
+            }
+        }
+    }
+}
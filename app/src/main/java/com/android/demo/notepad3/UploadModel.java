@@ -17,86 +17,241 @@ package com.android.demo.notepad3;
 
 import android.content.ContentResolver;
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.net.Uri;
 import android.util.Log;
 import android.webkit.MimeTypeMap;
 
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.ProgressEvent;
 import com.amazonaws.services.s3.model.ProgressListener;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.mobileconnectors.s3.transfermanager.PersistableTransfer;
 import com.amazonaws.mobileconnectors.s3.transfermanager.PersistableUpload;
 import com.amazonaws.mobileconnectors.s3.transfermanager.Transfer;
+import com.amazonaws.mobileconnectors.s3.transfermanager.Transfer.TransferState;
 import com.amazonaws.mobileconnectors.s3.transfermanager.TransferManager;
 import com.amazonaws.mobileconnectors.s3.transfermanager.Upload;
 import com.amazonaws.mobileconnectors.s3.transfermanager.exception.PauseException;
+import com.amazonaws.mobileconnectors.s3.transfermanager.internal.S3ProgressListener;
+import com.amazonaws.util.BinaryUtils;
+import com.amazonaws.util.Md5Utils;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Locale;
+import java.util.zip.GZIPOutputStream;
 
 /* UploadModel handles the interaction between the Upload and TransferManager.
  * This also makes sure that the file that is uploaded has the same file extension
  *
- * One thing to note is that we always create a copy of the file we are given. This
- * is because we wanted to demonstrate pause/resume which is only possible with a
- * File parameter, but there is no reliable way to get a File from a Uri(mainly
- * because there is no guarantee that the Uri has an associated File).
+ * We avoid copying what we are given where we can:
+ * - file:// Uris are uploaded in place, which keeps pause/resume working since
+ *   that is only possible with a File parameter
+ * - other Uris are streamed straight from the ContentResolver if we can find out
+ *   how long they are. Pausing these cancels the upload and resuming starts over
+ * - otherwise we fall back to a temporary copy, because the SDK would have to
+ *   buffer a stream of unknown length in memory to upload it. Parts of the copy
+ *   are sent while the rest is still being written (see PipelinedUpload)
  *
- * You can easily avoid this by directly using an InputStream instead of a Uri.
+ * Notes don't go through a Uri at all. Their body is read back from the
+ * UploadJournal and uploaded from memory along with its length and MD5, and
+ * the journal entry is closed once the note made it (or was aborted).
+ *
+ * If the tuning asks for it notes are gzipped before they go out and stored with
+ * Content-Encoding: gzip. DownloadModel undoes this and LogicalSizes lets the
+ * list show how big the note really is.
+ *
+ * Before uploading anything we can hash cheaply (notes, files and Uris of known
+ * length) we compare its MD5 with the ETag of the object already in the bucket
+ * and report it COMPLETED without uploading when they match, which is what happens whenever a note
+ * is saved without changes.
  */
 public class UploadModel extends TransferModel {
 	private static final String TAG = "UploadModel";
+	public static final String ENCODING_GZIP = "gzip";
 
 	private Upload mUpload;
+	// the upload failed before we had it, see onTransferFailed
+	private boolean mFailedEarly;
 	private PersistableUpload mPersistableUpload;
 	private ProgressListener mListener;
-	private Status mStatus;
+	private S3ProgressListener mCheckpointListener;
 	private File mFile;
+	// whether mFile holds all of the source
+	private boolean mFileComplete;
+	private volatile PipelinedUpload mPipeline;
 	private String mExtension;
+	// set for notes uploaded straight from memory
+	private byte[] mData;
+	private String mContentType;
+	// set if mData holds the compressed note
+	private String mContentEncoding;
+	private long mLogicalSize = -1;
+	// the journal entry to close once the note no longer needs uploading
+	private UploadJournal.Job mJob;
+	private String mJobId;
+	// MD5 of the content if we could work it out before uploading
+	private byte[] mMd5;
+	// set once we created the bucket for this upload
+	private volatile boolean mBucketRetried;
 
-	public UploadModel(Context context, Uri uri, TransferManager manager) {
-		super(context, uri, manager);
-		mStatus = Status.IN_PROGRESS;
+	public UploadModel(Context context, Uri uri, TransferManager manager,
+			TransferTuning tuning) {
+		super(context, uri, manager, tuning);
 		mExtension = MimeTypeMap.getSingleton().getExtensionFromMimeType(
 				context.getContentResolver().getType(uri));
-		;
-		mListener = new ProgressListener() {
-			@Override
-			public void progressChanged(ProgressEvent event) {
-				if (event.getEventCode() == ProgressEvent.COMPLETED_EVENT_CODE) {
-					mStatus = Status.COMPLETED;
-					if (mFile != null) {
-						mFile.delete();
-					}
-				}
+		mListener = makeListener();
+	}
+
+	public UploadModel(Context context, String fileName, byte[] data,
+			String contentType, TransferManager manager, TransferTuning tuning) {
+		super(context, Uri.parse(fileName), manager, tuning);
+		mData = data;
+		mContentType = contentType;
+		if (tuning.isCompressNotes()) {
+			byte[] compressed = gzip(data);
+			// tiny notes can come out bigger than they went in
+			if (compressed != null && compressed.length < data.length) {
+				mData = compressed;
+				mContentEncoding = ENCODING_GZIP;
+				mLogicalSize = data.length;
 			}
-		};
+		}
+		mListener = makeListener();
 	}
 
-	public Runnable getUploadRunnable() {
-		return new Runnable() {
+	public UploadModel(Context context, UploadJournal.Job job,
+			TransferManager manager, TransferTuning tuning) throws IOException {
+		this(context, job.getFileName(), job.readBody(), job.getContentType(),
+				manager, tuning);
+		mJob = job;
+		mJobId = job.getId();
+	}
+
+	/* rebuilds an upload the process died in the middle of */
+	public UploadModel(Context context, TransferCheckpoints.Checkpoint checkpoint,
+			TransferManager manager, TransferTuning tuning) {
+		this(context, Uri.parse(checkpoint.getSource()), manager, tuning);
+		if (checkpoint.getFile() != null) {
+			mFile = new File(checkpoint.getFile());
+			mFileComplete = true;
+		}
+		mPersistableUpload = checkpoint.getToken();
+		setCheckpointId(checkpoint.getId());
+		setStatus(Status.PAUSED);
+	}
+
+	private ProgressListener makeListener() {
+		// handed to the SDK with the request, so it can't miss the first events
+		mCheckpointListener = new S3ProgressListener() {
 			@Override
-			public void run() {
-				upload();
+			public void progressChanged(
+					com.amazonaws.event.ProgressEvent progressEvent) {
+				onProgressEvent(progressEvent.getEventCode(),
+						progressEvent.getBytesTransferred());
+			}
+
+			@Override
+			public void onPersistableTransfer(PersistableTransfer token) {
+				// as soon as it is pausable, in case we don't get to pause it
+				saveCheckpoint(TransferCheckpoints.KIND_UPLOAD,
+						getUri().toString(),
+						mFile == null ? null : mFile.getPath(), token);
+			}
+		};
+		return new ProgressListener() {
+			@Override
+			public void progressChanged(ProgressEvent event) {
+				onProgressEvent(event.getEventCode(),
+						event.getBytesTransferred());
 			}
 		};
 	}
 
+	/* the codes are the same for both kinds of ProgressEvent */
+	private void onProgressEvent(int code, long bytes) {
+		if (code == ProgressEvent.COMPLETED_EVENT_CODE) {
+			onCompleted();
+		} else if (code == ProgressEvent.FAILED_EVENT_CODE) {
+			onTransferFailed();
+		} else if (code == 0) {
+			// just bytes
+			notifyProgress(bytes);
+		} else if (code == ProgressEvent.RESET_EVENT_CODE) {
+			// a retried request takes back what it sent
+			notifyProgress(-bytes);
+		}
+	}
+
+	/* a resumed upload can tell us it finished twice, see resume() */
+	private synchronized void onCompleted() {
+		if (getStatus() == Status.COMPLETED) {
+			return;
+		}
+		if (mFile != null) {
+			mFile.delete();
+		}
+		setStatus(Status.COMPLETED);
+	}
+
+	/*
+	 * A failed upload stays in the journal to be tried again on the next
+	 * start, one that completed or that was aborted on purpose doesn't.
+	 */
+	@Override
+	protected void setStatus(Status status) {
+		super.setStatus(status);
+		if (status == Status.COMPLETED) {
+			finishJob();
+		}
+	}
+
+	private void finishJob() {
+		UploadJournal.Job job = mJob;
+		if (job != null) {
+			mJob = null;
+			UploadJournal.get(getContext()).complete(job);
+		}
+	}
+
 	@Override
 	public void abort() {
-		if (mUpload != null) {
-			mStatus = Status.CANCELED;
+		finishJob();
+		PipelinedUpload pipeline = mPipeline;
+		if (pipeline != null) {
+			setStatus(Status.CANCELED);
+			pipeline.abort();
+		} else if (mUpload != null) {
 			mUpload.abort();
 			if (mFile != null) {
 				mFile.delete();
 			}
+			setStatus(Status.CANCELED);
+		} else if (getStatus() != Status.COMPLETED
+				&& getStatus() != Status.CANCELED) {
+			// queued, paused without a token, or upload() hasn't started
+			// the transfer yet and checks for this before it does
+			if (mFile != null) {
+				mFile.delete();
+			}
+			setStatus(Status.CANCELED);
 		}
 	}
 
 	@Override
-	public Status getStatus() {
-		return mStatus;
+	public void start() {
+		upload();
+	}
+
+	/* the journal job this note came from, or null if it isn't a note */
+	public String getJobId() {
+		return mJobId;
 	}
 
 	@Override
@@ -104,29 +259,63 @@ public class UploadModel extends TransferModel {
 		return mUpload;
 	}
 
+	@Override
+	protected void onEvicted() {
+		mData = null;
+		mUpload = null;
+		mPersistableUpload = null;
+	}
+
+	@Override
+	public int getProgress() {
+		PipelinedUpload pipeline = mPipeline;
+		if (pipeline != null) {
+			return pipeline.getPercentTransferred();
+		}
+		return super.getProgress();
+	}
+
 	@Override
 	public void pause() {
-		if (mStatus == Status.IN_PROGRESS) {
-			if (mUpload != null) {
-				mStatus = Status.PAUSED;
+		if (getStatus() == Status.IN_PROGRESS) {
+			PipelinedUpload pipeline = mPipeline;
+			if (pipeline != null) {
+				// can't pause halfway through the copy, resume starts over
+				// (or uploads the staged file if the copy had finished)
+				setStatus(Status.PAUSED);
+				pipeline.abort();
+			} else if (mUpload != null) {
 				try {
 					mPersistableUpload = mUpload.pause();
+					saveCheckpoint(TransferCheckpoints.KIND_UPLOAD,
+							getUri().toString(),
+							mFile == null ? null : mFile.getPath(),
+							mPersistableUpload);
 				} catch (PauseException e) {
 					Log.d(TAG, "", e);
 				}
+				setStatus(Status.PAUSED);
 			}
 		}
 	}
 
 	@Override
 	public void resume() {
-		if (mStatus == Status.PAUSED) {
-			mStatus = Status.IN_PROGRESS;
+		if (getStatus() == Status.PAUSED) {
+			setStatus(Status.IN_PROGRESS);
 			if (mPersistableUpload != null) {
 				// if it paused fine, resume
-				mUpload = getTransferManager().resumeUpload(mPersistableUpload);
-				mUpload.addProgressListener(mListener);
+				Upload upload = getTransferManager().resumeUpload(
+						mPersistableUpload);
 				mPersistableUpload = null;
+				setUpload(upload);
+				// the SDK takes no listener here, it may be done already
+				upload.addProgressListener(mListener);
+				if (upload.isDone()) {
+					onProgressEvent(upload.getState() == TransferState.Completed
+							? ProgressEvent.COMPLETED_EVENT_CODE
+							: ProgressEvent.FAILED_EVENT_CODE, 0);
+				}
 			} else {
 				// if it was actually aborted, start a new one
 				upload();
@@ -135,57 +324,324 @@ public class UploadModel extends TransferModel {
 	}
 
 	public void upload() {
-		if (mFile == null) {
-			saveTempFile();
+		setStatus(Status.IN_PROGRESS);
+		if (mData == null) {
+			// whatever is behind the Uri may have changed since last time
+			mMd5 = null;
 		}
-		if (mFile != null) {
+		try {
+			String bucket = Constants.BUCKET_NAME.toLowerCase(Locale.US);
+			String prefix = IdentityResolver.peekPrefix();
+			if (prefix == null) {
+				// the identity isn't resolved yet, this waits for it
+				prefix = Util.getPrefix(getContext());
+			}
+			String key = prefix + super.getFileName();
+			boolean unchanged = isAlreadyUploaded(bucket, key);
+			if (mLogicalSize >= 0 && mMd5 != null) {
+				// the ETag of a single PUT is the MD5 of what we sent
+				new LogicalSizes(getContext()).record(key,
+						BinaryUtils.toHex(mMd5), mLogicalSize);
+			}
+			if (getStatus() != Status.IN_PROGRESS) {
+				// aborted while we were checking
+				return;
+			}
+			if (unchanged) {
+				Log.d(TAG, key + " is unchanged, not uploading it again");
+				setStatus(Status.COMPLETED);
+				return;
+			}
+			resetProgress(0);
+			// events for the new upload can come in before startUpload returns
+			setUpload(null);
+			Upload upload = startUpload(bucket, key);
+			// a pipelined upload has already finished by now
+			if (upload != null) {
+				setUpload(upload);
+				if (getStatus() == Status.CANCELED) {
+					// abort() came in before it could see the upload
+					upload.abort();
+				}
+			}
+		} catch (Exception e) {
+			Log.e(TAG, "", e);
+			// pausing or aborting a pipelined upload ends up here too
+			onFailed(e);
+		}
+	}
+
+	/*
+	 * The event doesn't say why, the Upload does once it is done. Waiting
+	 * for that on the SDK's thread would hold it up, so it's done on our own.
+	 * The upload can fail before startUpload() even returned it, then
+	 * setUpload() picks this up.
+	 */
+	private synchronized void onTransferFailed() {
+		if (mUpload == null) {
+			mFailedEarly = true;
+			return;
+		}
+		final Upload upload = mUpload;
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Exception cause = null;
+				try {
+					cause = upload.waitForException();
+				} catch (InterruptedException e) {
+					Log.d(TAG, "", e);
+				}
+				onFailed(cause);
+			}
+		}, TAG).start();
+	}
+
+	private synchronized void setUpload(Upload upload) {
+		mUpload = upload;
+		if (upload == null) {
+			mFailedEarly = false;
+		} else if (mFailedEarly) {
+			mFailedEarly = false;
+			onTransferFailed();
+		}
+	}
+
+	/*
+	 * Creates the bucket and starts over if that's what was missing (only
+	 * once, see BucketBootstrap), otherwise gives up. e may be null.
+	 */
+	private void onFailed(Exception e) {
+		if (getStatus() != Status.IN_PROGRESS) {
+			return;
+		}
+		if (!mBucketRetried && BucketBootstrap.isNoSuchBucket(e)) {
+			mBucketRetried = true;
 			try {
-				mUpload = getTransferManager().upload(
-						Constants.BUCKET_NAME.toLowerCase(Locale.US),
-						Util.getPrefix(getContext()) + super.getFileName(),
-						mFile);
-				mUpload.addProgressListener(mListener);
-			} catch (Exception e) {
-				Log.e(TAG, "", e);
+				new BucketBootstrap(getContext()).ensureBucket();
+				upload();
+				return;
+			} catch (Exception createFailed) {
+				Log.e(TAG, "", createFailed);
 			}
 		}
+		ConcurrencyController.recordFailure(e);
+		setStatus(Status.CANCELED);
 	}
 
-	private void saveTempFile() {
+	private Upload startUpload(String bucket, String key) throws IOException {
+		if (mData != null) {
+			ObjectMetadata metadata = new ObjectMetadata();
+			metadata.setContentLength(mData.length);
+			if (mMd5 == null) {
+				mMd5 = Md5Utils.computeMD5Hash(mData);
+			}
+			setContentMd5(metadata, mData.length);
+			if (mContentType != null) {
+				metadata.setContentType(mContentType);
+			}
+			if (mContentEncoding != null) {
+				metadata.setContentEncoding(mContentEncoding);
+			}
+			setProgressTotal(mData.length);
+			return getTransferManager().upload(new PutObjectRequest(bucket,
+					key, new ByteArrayInputStream(mData), metadata),
+					mCheckpointListener);
+		}
+
+		if (ContentResolver.SCHEME_FILE.equals(getUri().getScheme())) {
+			File file = new File(getUri().getPath());
+			ObjectMetadata metadata = new ObjectMetadata();
+			setContentMd5(metadata, file.length());
+			setProgressTotal(file.length());
+			return getTransferManager().upload(new PutObjectRequest(bucket,
+					key, file).withMetadata(metadata), mCheckpointListener);
+		}
 
 		ContentResolver resolver = getContext().getContentResolver();
-		InputStream in = null;
-		FileOutputStream out = null;
+		long length = getContentLength();
+		if (length >= 0) {
+			ObjectMetadata metadata = new ObjectMetadata();
+			metadata.setContentLength(length);
+			String type = resolver.getType(getUri());
+			if (type != null) {
+				metadata.setContentType(type);
+			}
+			setContentMd5(metadata, length);
+			setProgressTotal(length);
+			// the SDK closes the stream once it is done with it
+			return getTransferManager().upload(new PutObjectRequest(bucket,
+					key, resolver.openInputStream(getUri()), metadata),
+					mCheckpointListener);
+		}
 
-		try {
-			in = resolver.openInputStream(getUri());
+		if (mFile != null && mFileComplete) {
+			// staged by an earlier attempt that was paused or failed
+			setProgressTotal(mFile.length());
+			return getTransferManager().upload(new PutObjectRequest(bucket,
+					key, mFile), mCheckpointListener);
+		}
+		// not known until the copy is done, getProgress() asks the pipeline
+		setProgressTotal(-1);
+		stageAndUpload(bucket, key);
+		return null;
+	}
+
+	/*
+	 * Passes on the MD5 we worked out for the dedup check so the SDK doesn't
+	 * read the content again for it. Multipart uploads get per part checksums
+	 * from the SDK instead, a whole object MD5 means nothing to them.
+	 */
+	private void setContentMd5(ObjectMetadata metadata, long length) {
+		if (mMd5 != null && length < getTuning().getUploadThreshold()) {
+			metadata.setContentMD5(BinaryUtils.toBase64(mMd5));
+		}
+	}
+
+	/*
+	 * Copies the source to a temporary file while the parts that have been
+	 * copied are already being sent. Blocks until the upload is done.
+	 */
+	private void stageAndUpload(String bucket, String key) throws IOException {
+		ContentResolver resolver = getContext().getContentResolver();
+		InputStream in = resolver.openInputStream(getUri());
+		if (in == null) {
+			throw new IOException("Couldn't open " + getUri());
+		}
+		if (mFile == null) {
 			mFile = File.createTempFile("s3_demo_file_" + getId(), mExtension,
 					getContext().getCacheDir());
-			out = new FileOutputStream(mFile, false);
-			byte[] buffer = new byte[1024];
-			int read;
-			while ((read = in.read(buffer)) != -1) {
-				out.write(buffer, 0, read);
+		}
+		ObjectMetadata metadata = new ObjectMetadata();
+		String type = resolver.getType(getUri());
+		if (type != null) {
+			metadata.setContentType(type);
+		}
+
+		PipelinedUpload pipeline = new PipelinedUpload(
+				getTransferManager().getAmazonS3Client(), bucket, key, in,
+				mFile, metadata, getTuning());
+		pipeline.setProgressListener(mListener);
+		mPipeline = pipeline;
+		if (getStatus() == Status.CANCELED) {
+			// abort() came in before it could see the pipeline
+			pipeline.abort();
+		}
+		try {
+			pipeline.run();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while uploading " + getUri());
+		} finally {
+			mPipeline = null;
+			mFileComplete = pipeline.isReadComplete();
+			if (getStatus() == Status.CANCELED) {
+				mFile.delete();
 			}
-			out.flush();
-		} catch (IOException e) {
+		}
+		mFile.delete();
+		setStatus(Status.COMPLETED);
+	}
+
+	/*
+	 * Whether the bucket already has exactly these bytes under this key, as
+	 * a HEAD request says. The cached listing can't tell: it still has notes
+	 * deleted since the last refresh and the old ETag of notes saved since.
+	 */
+	private boolean isAlreadyUploaded(String bucket, String key) {
+		try {
+			byte[] md5Hash = mMd5 != null ? mMd5 : computeMd5();
+			if (md5Hash == null) {
+				return false;
+			}
+			// kept for the upload, see setContentMd5
+			mMd5 = md5Hash;
+			String md5 = BinaryUtils.toHex(md5Hash);
+			ObjectMetadata remote = getTransferManager().getAmazonS3Client()
+					.getObjectMetadata(bucket, key);
+			return md5.equalsIgnoreCase(stripQuotes(remote.getETag()));
+		} catch (AmazonServiceException e) {
+			if (e.getStatusCode() != 404) {
+				Log.e(TAG, "", e);
+			}
+			return false;
+		} catch (Exception e) {
+			// when in doubt, upload
 			Log.e(TAG, "", e);
+			return false;
+		}
+	}
+
+	/* MD5 of the content in one streaming pass, or null if it can't be read twice */
+	private byte[] computeMd5() throws IOException {
+		if (mData != null) {
+			return Md5Utils.computeMD5Hash(mData);
+		}
+		if (ContentResolver.SCHEME_FILE.equals(getUri().getScheme())) {
+			return Md5Utils.computeMD5Hash(new File(getUri().getPath()));
+		}
+		if (getContentLength() < 0) {
+			// we only get to read these once, see stageAndUpload
+			return null;
+		}
+		InputStream in = getContext().getContentResolver().openInputStream(
+				getUri());
+		if (in == null) {
+			return null;
+		}
+		try {
+			return Md5Utils.computeMD5Hash(in);
 		} finally {
-			if (in != null) {
-				try {
-					in.close();
-				} catch (IOException e) {
-					Log.e(TAG, "", e);
-				}
+			in.close();
+		}
+	}
+
+	private static String stripQuotes(String eTag) {
+		if (eTag != null && eTag.length() >= 2 && eTag.startsWith("\"")
+				&& eTag.endsWith("\"")) {
+			return eTag.substring(1, eTag.length() - 1);
+		}
+		return eTag;
+	}
+
+	/*
+	 * The whole note gzipped, or null if that failed. The header has no
+	 * timestamp, so the same note always compresses to the same bytes and
+	 * the dedup check still works.
+	 */
+	private static byte[] gzip(byte[] data) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+					data.length / 2 + 32);
+			GZIPOutputStream out = new GZIPOutputStream(bytes);
+			out.write(data);
+			out.close();
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			Log.e(TAG, "", e);
+			return null;
+		}
+	}
+
+	/* length of the content behind the Uri, or -1 if the provider can't tell */
+	private long getContentLength() {
+		AssetFileDescriptor fd = null;
+		try {
+			fd = getContext().getContentResolver().openAssetFileDescriptor(
+					getUri(), "r");
+			if (fd != null) {
+				return fd.getLength();
 			}
-			if (out != null) {
+		} catch (FileNotFoundException e) {
+			Log.d(TAG, "", e);
+		} finally {
+			if (fd != null) {
 				try {
-					out.close();
+					fd.close();
 				} catch (IOException e) {
 					Log.e(TAG, "", e);
 				}
 			}
 		}
-
+		return AssetFileDescriptor.UNKNOWN_LENGTH;
 	}
 }
@@ -18,25 +18,37 @@ package com.android.demo.notepad3;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.Executors;
 
 import android.content.Context;
+import android.util.Log;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.auth.CognitoCachingCredentialsProvider;
+import com.amazonaws.mobileconnectors.s3.transfermanager.TransferManager;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.s3.AmazonS3Client;
-import com.amazonaws.services.s3.model.DeleteObjectsRequest;
-import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
-import com.amazonaws.services.s3.model.S3ObjectSummary;
 
 /* 
  * This class just handles getting the client since we don't need to have more than
  * one per application
+ *
+ * The TransferManager is shared too and sits on the same client, so listing
+ * and transfers draw from one pool of kept alive connections (see
+ * ConnectionTuning).
  */
 public class Util {
+    private static final String TAG = "Util";
+    // multi-object deletes in flight at once, see BatchDeleter
+    private static final int DELETE_CONCURRENCY = 4;
+
     private static AmazonS3Client sS3Client;
+    private static TransferManager sTransferManager;
     private static CognitoCachingCredentialsProvider sCredProvider;
+    private static boolean sWarmedUp;
 
-    public static CognitoCachingCredentialsProvider getCredProvider(Context context) {
+    public static synchronized CognitoCachingCredentialsProvider getCredProvider(
+            Context context) {
         if (sCredProvider == null) {
             sCredProvider = new CognitoCachingCredentialsProvider(
                     context,
@@ -49,41 +61,110 @@ public class Util {
         return sCredProvider;
     }
 
+    /*
+     * Usually returns straight away, see IdentityResolver. Only blocks the
+     * very first time the app runs, so don't call it on the UI thread.
+     */
     public static String getPrefix(Context context) {
-        return getCredProvider(context).getIdentityId() + "/";
+        return IdentityResolver.getIdentityId(context) + "/";
     }
 
-    public static AmazonS3Client getS3Client(Context context) {
+    public static synchronized AmazonS3Client getS3Client(Context context) {
         if (sS3Client == null) {
-            sS3Client = new AmazonS3Client(getCredProvider(context));
+            // never waits on Cognito once the process is warm
+            sS3Client = new AmazonS3Client(CredentialManager.get(context),
+                    ConnectionTuning.getDefault().toConfiguration());
         }
         return sS3Client;
     }
 
-    public static String getFileName(String path) {
-        return path.substring(path.lastIndexOf("/") + 1);
+    /*
+     * The one TransferManager, on the shared client. Its threads stay around
+     * once they have been started, so it is never shut down.
+     */
+    public static synchronized TransferManager getTransferManager(Context context) {
+        if (sTransferManager == null) {
+            sTransferManager = new TransferManager(getS3Client(context),
+                    Executors.newFixedThreadPool(
+                            ConnectionTuning.getDefault().getTransferThreads()));
+        }
+        return sTransferManager;
     }
 
-    public static boolean doesBucketExist() {
-        return sS3Client.doesBucketExist(Constants.BUCKET_NAME.toLowerCase(Locale.US));
+    /*
+     * Opens a connection to S3 in the background, once per process, so the
+     * first list or transfer finds it in the pool instead of waiting for the
+     * TCP and TLS handshakes. This also gets the credentials in. Once the
+     * BucketBootstrap knows the bucket is there it sends no request at all.
+     * Safe to call on the UI thread, everything happens on the new one.
+     */
+    public static void warmUp(Context context) {
+        synchronized (Util.class) {
+            if (sWarmedUp) {
+                return;
+            }
+            sWarmedUp = true;
+        }
+        final Context appContext = context.getApplicationContext();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // both read shared preferences, which is disk I/O
+                    AmazonS3Client client = getS3Client(appContext);
+                    BucketBootstrap bootstrap = new BucketBootstrap(appContext);
+                    if (bootstrap.isKnownToExist()) {
+                        // the client and credentials are what we came for
+                        return;
+                    }
+                    // cheap, and keeps the BucketBootstrap up to date
+                    if (client.doesBucketExist(
+                            Constants.BUCKET_NAME.toLowerCase(Locale.US))) {
+                        bootstrap.markExists();
+                    }
+                } catch (Exception e) {
+                    Log.e(TAG, "", e);
+                    synchronized (Util.class) {
+                        sWarmedUp = false;
+                    }
+                }
+            }
+        }, TAG).start();
     }
 
-    public static void createBucket() {
-        sS3Client.createBucket(Constants.BUCKET_NAME.toLowerCase(Locale.US));
+    public static String getFileName(String path) {
+        return path.substring(path.lastIndexOf("/") + 1);
     }
 
-    public static void deleteBucket() {
+    /* empties the bucket first, however many objects it holds */
+    public static void deleteBucket(Context context) throws InterruptedException {
         String name = Constants.BUCKET_NAME.toLowerCase(Locale.US);
-        List<S3ObjectSummary> objData = sS3Client.listObjects(name).getObjectSummaries();
-        if (objData.size() > 0) {
-            DeleteObjectsRequest emptyBucket = new DeleteObjectsRequest(name);
-            List<KeyVersion> keyList = new ArrayList<KeyVersion>();
-            for (S3ObjectSummary summary : objData) {
-                keyList.add(new KeyVersion(summary.getKey()));
-            }
-            emptyBucket.withKeys(keyList);
-            sS3Client.deleteObjects(emptyBucket);
+        BatchDeleter.Result result = new BatchDeleter(getS3Client(context),
+                name, DELETE_CONCURRENCY).deletePrefix(null);
+        // some of it went even if not all of it did
+        new ListingCache(context).clear();
+        new LogicalSizes(context).clear();
+        if (!result.isSuccessful()) {
+            throw new AmazonClientException("Couldn't delete "
+                    + result.getFailures().size() + " objects from " + name);
         }
-        sS3Client.deleteBucket(name);
+        getS3Client(context).deleteBucket(name);
+        new BucketBootstrap(context).forget();
+    }
+
+    /*
+     * Blocks until all the keys have been tried, see BatchDeleter. The ones
+     * that went are dropped from the ListingCache and LogicalSizes too.
+     */
+    public static BatchDeleter.Result deleteNotes(Context context, List<String> keys)
+            throws InterruptedException {
+        BatchDeleter.Result result = new BatchDeleter(getS3Client(context),
+                Constants.BUCKET_NAME.toLowerCase(Locale.US), DELETE_CONCURRENCY)
+                .deleteKeys(keys);
+        List<String> deleted = new ArrayList<String>(keys);
+        deleted.removeAll(result.getFailures().keySet());
+        new ListingCache(context).remove(getPrefix(context), deleted);
+        new LogicalSizes(context).forget(deleted);
+        return result;
     }
 }